@@ -0,0 +1,296 @@
+package com.hmdp.cache;
+
+import cn.hutool.core.util.ReflectUtil;
+import cn.hutool.core.util.TypeUtil;
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @className: BinaryCacheCodec
+ * @description: 紧凑二进制编解码
+ * 格式: 魔数(1) + 版本(1) + 逻辑过期时间戳(8) + 重建耗时(4) + 数据类型(1) + 数据
+ * 版本1没有重建耗时 读取时仍兼容
+ * 实体类按字段名排序后依次写入每个字段 整数使用变长编码 时间写入毫秒数
+ * 字段结构的哈希写在数据前 实体类字段变更后旧数据解码返回null 由调用方重新加载
+ * @author: FengL
+ * @create: 2025/1/16 21:46
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xCB;
+
+    private static final byte VERSION_1 = 1;
+
+    private static final byte VERSION = 2;
+
+    /**
+     * 版本1头部长度 魔数 + 版本 + 逻辑过期时间
+     */
+    private static final int HEADER_LENGTH_V1 = 10;
+
+    /**
+     * 头部长度 魔数 + 版本 + 逻辑过期时间 + 重建耗时
+     */
+    private static final int HEADER_LENGTH = 14;
+
+    private static final byte KIND_NULL = 0;
+    private static final byte KIND_BEAN = 1;
+    private static final byte KIND_JSON = 2;
+
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_BOOLEAN = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_DATE_TIME = 6;
+    private static final byte TYPE_OTHER = 7;
+
+    private final Map<Class<?>, BeanSchema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value, long expireMillis, int deltaMillis) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeFixedLong(out, expireMillis);
+        writeFixedInt(out, deltaMillis);
+        if (value == null) {
+            out.write(KIND_NULL);
+        } else if (isBean(value.getClass())) {
+            BeanSchema schema = schemaOf(value.getClass());
+            out.write(KIND_BEAN);
+            writeFixedInt(out, schema.hash);
+            for (int i = 0; i < schema.fields.length; i++) {
+                writeField(out, schema.types[i], ReflectUtil.getFieldValue(value, schema.fields[i]));
+            }
+        } else {
+            out.write(KIND_JSON);
+            writeString(out, JSONUtil.toJsonStr(value));
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        if (bytes.length < HEADER_LENGTH_V1 || bytes[0] != MAGIC) {
+            return false;
+        }
+        return bytes[1] == VERSION_1 || (bytes[1] == VERSION && bytes.length >= HEADER_LENGTH);
+    }
+
+    @Override
+    public long readExpireMillis(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, 2, 8).getLong();
+    }
+
+    @Override
+    public int readDeltaMillis(byte[] bytes) {
+        return bytes[1] == VERSION_1 ? 0 : ByteBuffer.wrap(bytes, 10, 4).getInt();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> R decode(byte[] bytes, Type type) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(bytes[1] == VERSION_1 ? HEADER_LENGTH_V1 : HEADER_LENGTH);
+        byte kind = buffer.get();
+        if (kind == KIND_NULL) {
+            return null;
+        }
+        if (kind == KIND_JSON) {
+            return JSONUtil.toBean(readString(buffer), type, false);
+        }
+        Class<?> beanType = TypeUtil.getClass(type);
+        BeanSchema schema = schemaOf(beanType);
+        if (buffer.getInt() != schema.hash) {
+            // 实体类结构已变更
+            return null;
+        }
+        Object bean = ReflectUtil.newInstanceIfPossible(beanType);
+        for (int i = 0; i < schema.fields.length; i++) {
+            Object fieldValue = readField(buffer, schema.types[i], schema.fields[i]);
+            if (fieldValue != null) {
+                ReflectUtil.setFieldValue(bean, schema.fields[i], fieldValue);
+            }
+        }
+        return (R) bean;
+    }
+
+    private static boolean isBean(Class<?> type) {
+        return !type.isArray() && !type.isEnum() && !type.isPrimitive() && !type.getName().startsWith("java.");
+    }
+
+    private BeanSchema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, BeanSchema::new);
+    }
+
+    private static void writeField(ByteArrayOutputStream out, byte type, Object value) {
+        if (value == null) {
+            out.write(0);
+            return;
+        }
+        out.write(1);
+        switch (type) {
+            case TYPE_LONG:
+                writeVarLong(out, (Long) value);
+                break;
+            case TYPE_INT:
+                writeVarLong(out, (Integer) value);
+                break;
+            case TYPE_BOOLEAN:
+                out.write((Boolean) value ? 1 : 0);
+                break;
+            case TYPE_DOUBLE:
+                writeFixedLong(out, Double.doubleToLongBits((Double) value));
+                break;
+            case TYPE_STRING:
+                writeString(out, (String) value);
+                break;
+            case TYPE_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                writeVarLong(out, time.toEpochSecond(ZoneOffset.UTC) * 1000 + time.getNano() / 1_000_000);
+                break;
+            default:
+                writeString(out, JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readField(ByteBuffer buffer, byte type, Field field) {
+        if (buffer.get() == 0) {
+            return null;
+        }
+        switch (type) {
+            case TYPE_LONG:
+                return readVarLong(buffer);
+            case TYPE_INT:
+                return (int) readVarLong(buffer);
+            case TYPE_BOOLEAN:
+                return buffer.get() == 1;
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(buffer.getLong());
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_DATE_TIME:
+                long millis = readVarLong(buffer);
+                return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                        (int) Math.floorMod(millis, 1000L) * 1_000_000, ZoneOffset.UTC);
+            default:
+                return JSONUtil.toBean(readString(buffer), field.getGenericType(), false);
+        }
+    }
+
+    private static void writeFixedLong(ByteArrayOutputStream out, long value) {
+        for (int i = 56; i >= 0; i -= 8) {
+            out.write((int) (value >>> i));
+        }
+    }
+
+    private static void writeFixedInt(ByteArrayOutputStream out, int value) {
+        for (int i = 24; i >= 0; i -= 8) {
+            out.write(value >>> i);
+        }
+    }
+
+    /**
+     * zigzag 变长编码 小整数只占1个字节
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = (int) readVarLong(buffer);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * 实体类的字段结构 按字段名排序 保证各节点写入顺序一致
+     */
+    private static class BeanSchema {
+
+        private final Field[] fields;
+
+        private final byte[] types;
+
+        private final int hash;
+
+        BeanSchema(Class<?> beanType) {
+            List<Field> list = new ArrayList<>();
+            for (Field field : ReflectUtil.getFields(beanType)) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            this.types = new byte[fields.length];
+            StringBuilder signature = new StringBuilder();
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = typeOf(fields[i].getType());
+                signature.append(fields[i].getName()).append(':').append(fields[i].getType().getName()).append(';');
+            }
+            this.hash = signature.toString().hashCode();
+        }
+
+        private static byte typeOf(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return TYPE_LONG;
+            }
+            if (type == Integer.class || type == int.class) {
+                return TYPE_INT;
+            }
+            if (type == Boolean.class || type == boolean.class) {
+                return TYPE_BOOLEAN;
+            }
+            if (type == Double.class || type == double.class) {
+                return TYPE_DOUBLE;
+            }
+            if (type == String.class) {
+                return TYPE_STRING;
+            }
+            if (type == LocalDateTime.class) {
+                return TYPE_DATE_TIME;
+            }
+            return TYPE_OTHER;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.hmdp.cache;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @className: BloomFilterManager
+ * @description: 布隆过滤器 拦截数据库中不存在的id 防止缓存穿透
+ * 启动时从数据库加载全部id 新增数据时广播到所有节点 定时全量重建以清理已删除的id
+ * 定时重建在随机延迟后执行 避免所有节点同时扫描数据库 拦截数和误判数通过 CacheMetrics 导出
+ * 新增的id同时记录到 bloom:recent:{prefix} 有序集合 各节点定时增量同步 补上丢失的广播
+ * @author: FengL
+ * @create: 2025/1/14 22:05
+ */
+@Slf4j
+@Component
+public class BloomFilterManager {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    /**
+     * 延迟执行定时重建 不占用定时任务线程
+     */
+    private final ScheduledExecutorService rebuilder =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("bloom-rebuild-", true));
+
+    /**
+     * key前缀 -> 布隆过滤器  未加载完成前不做拦截
+     */
+    private final Map<String, IdBloomFilter> filters = new ConcurrentHashMap<>();
+
+    /**
+     * 重建期间新增的id 重建完成后补充到新的过滤器中
+     */
+    private final Map<String, Queue<Long>> rebuildingAdds = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀 -> 上次增量同步的时间
+     */
+    private final Map<String, Long> lastSynced = new ConcurrentHashMap<>();
+
+    /**
+     * 被拦截的请求数
+     */
+    private final Map<String, AtomicLong> rejectedCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 通过了过滤器 但数据库中不存在的请求数 即误判数
+     */
+    private final Map<String, AtomicLong> falsePositiveCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 订阅其他节点新增id的广播 消息内容即缓存key
+     * 订阅前创建重建队列 首次加载期间新增的id在加载完成后补充到过滤器中
+     */
+    @PostConstruct
+    public void init() {
+        rebuildingAdds.put(RedisConstants.CACHE_SHOP_KEY, new ConcurrentLinkedQueue<>());
+        rebuildingAdds.put(RedisConstants.CACHE_USER_KEY, new ConcurrentLinkedQueue<>());
+        listenerContainer.addMessageListener((message, pattern) ->
+                        putLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        rebuilder.shutdownNow();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        rebuild(RedisConstants.CACHE_SHOP_KEY, shopMapper);
+        rebuild(RedisConstants.CACHE_USER_KEY, userMapper);
+    }
+
+    /**
+     * 每天凌晨全量重建 清理已删除的id 并根据数据量重新计算容量
+     * 各节点随机延迟 BLOOM_REBUILD_JITTER_MILLIS 以内 错开数据库扫描
+     */
+    @Scheduled(cron = "0 0 4 * * ?")
+    public void scheduledRebuild() {
+        long delay = ThreadLocalRandom.current().nextLong(RedisConstants.BLOOM_REBUILD_JITTER_MILLIS);
+        rebuilder.schedule(this::load, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 增量同步最近新增的id 广播是发后即忘的 订阅断开期间的消息会丢失
+     * 从上次同步时间往前多读一个周期 容忍节点间的时钟偏差 超过保留时间的记录由每天的全量重建覆盖
+     */
+    @Scheduled(fixedDelay = RedisConstants.BLOOM_SYNC_MILLIS, initialDelay = RedisConstants.BLOOM_SYNC_MILLIS)
+    public void syncRecent() {
+        long now = System.currentTimeMillis();
+        Set<String> keyPrefixes = new HashSet<>(filters.keySet());
+        keyPrefixes.addAll(rebuildingAdds.keySet());
+        for (String keyPrefix : keyPrefixes) {
+            String key = RedisConstants.BLOOM_RECENT_KEY + keyPrefix;
+            try {
+                long from = lastSynced.getOrDefault(keyPrefix, 0L) - RedisConstants.BLOOM_SYNC_MILLIS;
+                Set<String> ids = stringRedisTemplate.opsForZSet().rangeByScore(key, from, Double.POSITIVE_INFINITY);
+                if (ids != null) {
+                    ids.forEach(id -> putLocal(keyPrefix + id));
+                }
+                lastSynced.put(keyPrefix, now);
+                stringRedisTemplate.opsForZSet().removeRangeByScore(key, 0, now - RedisConstants.BLOOM_RECENT_RETAIN_MILLIS);
+            } catch (Exception e) {
+                log.error("布隆过滤器增量同步失败 prefix:{}", keyPrefix, e);
+            }
+        }
+    }
+
+    /**
+     * 判断id是否可能存在
+     *
+     * @param keyPrefix 缓存key前缀
+     * @param id
+     * @return false 一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        IdBloomFilter filter = filters.get(keyPrefix);
+        if (filter == null || !(id instanceof Number)) {
+            return true;
+        }
+        if (filter.mightContain(((Number) id).longValue())) {
+            return true;
+        }
+        rejectedCounts.computeIfAbsent(keyPrefix, k -> new AtomicLong()).incrementAndGet();
+        cacheMetrics.bloomRejected(keyPrefix);
+        return false;
+    }
+
+    /**
+     * 记录一次误判 由缓存查询在数据库未命中时调用
+     */
+    public void recordFalsePositive(String keyPrefix) {
+        if (filters.containsKey(keyPrefix)) {
+            falsePositiveCounts.computeIfAbsent(keyPrefix, k -> new AtomicLong()).incrementAndGet();
+            cacheMetrics.bloomFalsePositive(keyPrefix);
+        }
+    }
+
+    /**
+     * 新增数据后调用 写入本节点并广播到其他节点 同时记录到最近新增集合供增量同步
+     *
+     * @param keyPrefix
+     * @param id
+     */
+    public void add(String keyPrefix, Long id) {
+        String key = keyPrefix + id;
+        putLocal(key);
+        stringRedisTemplate.opsForZSet().add(RedisConstants.BLOOM_RECENT_KEY + keyPrefix, id.toString(),
+                System.currentTimeMillis());
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, key);
+    }
+
+    /**
+     * 写入已有的过滤器 正在重建的同时记录到重建队列 首次加载时还没有过滤器
+     */
+    private void putLocal(String key) {
+        Set<String> keyPrefixes = new HashSet<>(filters.keySet());
+        keyPrefixes.addAll(rebuildingAdds.keySet());
+        for (String keyPrefix : keyPrefixes) {
+            if (!key.startsWith(keyPrefix)) {
+                continue;
+            }
+            long id = Long.parseLong(key.substring(keyPrefix.length()));
+            IdBloomFilter filter = filters.get(keyPrefix);
+            if (filter != null) {
+                filter.put(id);
+            }
+            Queue<Long> adds = rebuildingAdds.get(keyPrefix);
+            if (adds != null) {
+                adds.add(id);
+            }
+        }
+    }
+
+    /**
+     * 从数据库按主键分批加载全部id 重建完成后替换旧的过滤器 并备份到redis
+     * 数据库不可用时 从redis备份中恢复
+     */
+    private <T> void rebuild(String keyPrefix, BaseMapper<T> mapper) {
+        Queue<Long> adds = rebuildingAdds.computeIfAbsent(keyPrefix, k -> new ConcurrentLinkedQueue<>());
+        try {
+            long begin = System.currentTimeMillis();
+            long count = mapper.selectCount(null);
+            // 预留一倍容量给新增数据
+            IdBloomFilter filter = new IdBloomFilter(Math.max(count * 2, RedisConstants.BLOOM_MIN_INSERTIONS),
+                    RedisConstants.BLOOM_FILTER_FPP);
+            long lastId = 0;
+            while (true) {
+                List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                        .select("id")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + RedisConstants.BLOOM_LOAD_BATCH_SIZE));
+                for (Object id : ids) {
+                    filter.put(((Number) id).longValue());
+                }
+                if (ids.size() < RedisConstants.BLOOM_LOAD_BATCH_SIZE) {
+                    break;
+                }
+                lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            }
+            adds.forEach(filter::put);
+            filters.put(keyPrefix, filter);
+            // 替换后仍可能有极少量新增落在旧过滤器上 再补一次
+            adds.forEach(filter::put);
+            backup(keyPrefix, filter);
+            log.info("布隆过滤器重建完成 prefix:{} 数量:{} 预估误判率:{} 累计拦截:{} 累计误判:{} 耗时:{}ms",
+                    keyPrefix, count, filter.expectedFpp(), rejectedCounts.get(keyPrefix),
+                    falsePositiveCounts.get(keyPrefix), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("布隆过滤器重建失败 prefix:{}", keyPrefix, e);
+            if (!filters.containsKey(keyPrefix)) {
+                restore(keyPrefix);
+            }
+        } finally {
+            rebuildingAdds.remove(keyPrefix);
+        }
+    }
+
+    private void backup(String keyPrefix, IdBloomFilter filter) {
+        byte[] key = (RedisConstants.BLOOM_FILTER_KEY + keyPrefix).getBytes(StandardCharsets.UTF_8);
+        byte[] value = filter.toBytes();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(key, value));
+    }
+
+    private void restore(String keyPrefix) {
+        byte[] key = (RedisConstants.BLOOM_FILTER_KEY + keyPrefix).getBytes(StandardCharsets.UTF_8);
+        byte[] value = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+        if (value != null) {
+            IdBloomFilter filter = IdBloomFilter.fromBytes(value);
+            // 备份之后新增的id
+            Queue<Long> adds = rebuildingAdds.get(keyPrefix);
+            if (adds != null) {
+                adds.forEach(filter::put);
+            }
+            filters.put(keyPrefix, filter);
+            log.warn("布隆过滤器已从redis备份恢复 prefix:{}", keyPrefix);
+        }
+    }
+}
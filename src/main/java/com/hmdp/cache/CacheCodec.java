@@ -0,0 +1,68 @@
+package com.hmdp.cache;
+
+import java.lang.reflect.Type;
+
+/**
+ * @className: CacheCodec
+ * @description: 缓存数据编解码
+ * @author: FengL
+ * @create: 2025/1/16 21:12
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码
+     *
+     * @param value        缓存数据
+     * @param expireMillis 逻辑过期时间戳 毫秒 0表示没有逻辑过期时间
+     * @return 写入redis的数据
+     */
+    default byte[] encode(Object value, long expireMillis) {
+        return encode(value, expireMillis, 0);
+    }
+
+    /**
+     * 编码 并记录本次重建耗时 用于提前刷新
+     *
+     * @param value        缓存数据
+     * @param expireMillis 逻辑过期时间戳 毫秒 0表示没有逻辑过期时间
+     * @param deltaMillis  重建耗时 毫秒
+     * @return 写入redis的数据
+     */
+    byte[] encode(Object value, long expireMillis, int deltaMillis);
+
+    /**
+     * 是否是本编码器写入的数据
+     *
+     * @param bytes redis中的数据
+     * @return true 可以解码
+     */
+    boolean supports(byte[] bytes);
+
+    /**
+     * 只读取逻辑过期时间 不解码数据
+     *
+     * @param bytes redis中的数据
+     * @return 逻辑过期时间戳 毫秒 0表示没有逻辑过期时间
+     */
+    long readExpireMillis(byte[] bytes);
+
+    /**
+     * 只读取上次重建耗时 不解码数据
+     *
+     * @param bytes redis中的数据
+     * @return 重建耗时 毫秒 未记录时为0
+     */
+    default int readDeltaMillis(byte[] bytes) {
+        return 0;
+    }
+
+    /**
+     * 解码
+     *
+     * @param bytes redis中的数据
+     * @param type  数据类型 支持List等泛型类型
+     * @return 数据 结构不兼容时返回null
+     */
+    <R> R decode(byte[] bytes, Type type);
+}
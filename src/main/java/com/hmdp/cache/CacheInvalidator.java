@@ -0,0 +1,125 @@
+package com.hmdp.cache;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @className: CacheInvalidator
+ * @description: 缓存失效 在事务提交后删除缓存
+ * 同一个事务内的key合并为一次删除 提交后再延迟删除一次 清理提交前被并发读请求写回的旧数据
+ * redis不可用时 key写入本地文件队列 由定时任务重试
+ * @author: FengL
+ * @create: 2025/1/19 20:34
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    private final ScheduledExecutorService delayExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("cache-invalidator-", true));
+
+    /**
+     * 重试队列文件 进程重启后仍会继续重试
+     */
+    private final File queueFile = FileUtil.file(FileUtil.getTmpDir(), RedisConstants.CACHE_INVALIDATE_QUEUE_FILE);
+
+    /**
+     * 删除缓存 在事务中调用时 等事务提交后再删除 事务回滚则不删除
+     *
+     * @param key
+     */
+    public void invalidate(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            deleteWithDelay(Collections.singleton(key));
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Set<String> keys = (Set<String>) TransactionSynchronizationManager.getResource(this);
+        if (keys == null) {
+            // 当前事务第一次删除 注册事务同步
+            Set<String> transactionKeys = new LinkedHashSet<>();
+            TransactionSynchronizationManager.bindResource(this, transactionKeys);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    deleteWithDelay(transactionKeys);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(CacheInvalidator.this);
+                }
+            });
+            keys = transactionKeys;
+        }
+        keys.add(key);
+    }
+
+    /**
+     * 立即删除一次 延迟后再删除一次
+     */
+    private void deleteWithDelay(Collection<String> keys) {
+        delete(keys);
+        delayExecutor.schedule(() -> delete(keys), RedisConstants.CACHE_DELAY_DELETE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void delete(Collection<String> keys) {
+        try {
+            cacheClient.delete(keys);
+        } catch (Exception e) {
+            log.error("删除缓存失败 写入重试队列 keys:{}", keys, e);
+            enqueue(keys);
+        }
+    }
+
+    private synchronized void enqueue(Collection<String> keys) {
+        FileUtil.appendUtf8Lines(keys, queueFile);
+    }
+
+    /**
+     * 重试删除失败的缓存 成功后清空队列
+     */
+    @Scheduled(fixedDelay = RedisConstants.CACHE_INVALIDATE_RETRY_MILLIS)
+    public synchronized void retry() {
+        if (!queueFile.exists()) {
+            return;
+        }
+        List<String> lines = FileUtil.readUtf8Lines(queueFile);
+        Set<String> keys = new LinkedHashSet<>(lines);
+        keys.remove("");
+        try {
+            cacheClient.delete(keys);
+            FileUtil.del(queueFile);
+            log.info("重试删除缓存成功 数量:{}", keys.size());
+        } catch (Exception e) {
+            log.warn("重试删除缓存失败 等待下次重试 数量:{}", keys.size());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        delayExecutor.shutdown();
+    }
+}
@@ -0,0 +1,244 @@
+package com.hmdp.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @className: CacheMetrics
+ * @description: 缓存监控指标 按key前缀和缓存策略打标签 通过actuator以prometheus格式导出
+ * 命中率 = cache_requests_total{result="hit"|"local"} / cache_requests_total
+ * 每个key前缀的指标按策略和结果的序号存放在数组中 首次使用时注册 查询路径上不拼接字符串
+ * @author: FengL
+ * @create: 2025/1/24 19:52
+ */
+@Component
+public class CacheMetrics {
+
+    /**
+     * 一次查询的结果
+     */
+    public enum Outcome {
+        /**
+         * 命中本地缓存
+         */
+        LOCAL,
+        /**
+         * 命中redis
+         */
+        HIT,
+        /**
+         * 命中缓存的空值
+         */
+        NULL,
+        /**
+         * 未命中 需要查询数据库
+         */
+        MISS,
+        /**
+         * 返回了逻辑过期的旧数据
+         */
+        STALE
+    }
+
+    private static final int STRATEGY_COUNT = CacheStrategy.values().length;
+
+    private static final int OUTCOME_COUNT = Outcome.values().length;
+
+    private final MeterRegistry registry;
+
+    /**
+     * key前缀 -> 该前缀已创建的指标 避免每次查询都在registry中查找
+     */
+    private final Map<String, PrefixMeters> meters = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void record(String prefix, CacheStrategy strategy, Outcome outcome) {
+        record(prefix, strategy, outcome, 1);
+    }
+
+    public void record(String prefix, CacheStrategy strategy, Outcome outcome, long count) {
+        if (count > 0) {
+            AtomicReferenceArray<Counter> requests = metersOf(prefix).requests;
+            int index = strategy.ordinal() * OUTCOME_COUNT + outcome.ordinal();
+            Counter counter = requests.get(index);
+            if (counter == null) {
+                counter = cache(requests, index, registry.counter("cache.requests", "prefix", prefix,
+                        "strategy", tagOf(strategy), "result", outcome.name().toLowerCase()));
+            }
+            counter.increment(count);
+        }
+    }
+
+    /**
+     * 获取重建互斥锁失败
+     */
+    public void lockFailure(String prefix, CacheStrategy strategy, long count) {
+        if (count > 0) {
+            AtomicReferenceArray<Counter> lockFailures = metersOf(prefix).lockFailures;
+            Counter counter = lockFailures.get(strategy.ordinal());
+            if (counter == null) {
+                counter = cache(lockFailures, strategy.ordinal(), registry.counter("cache.lock.failures",
+                        "prefix", prefix, "strategy", tagOf(strategy)));
+            }
+            counter.increment(count);
+        }
+    }
+
+    /**
+     * 数据库线程池已满 放弃查询或重建
+     */
+    public void dbRejected(String prefix, CacheStrategy strategy) {
+        AtomicReferenceArray<Counter> dbRejected = metersOf(prefix).dbRejected;
+        Counter counter = dbRejected.get(strategy.ordinal());
+        if (counter == null) {
+            counter = cache(dbRejected, strategy.ordinal(), registry.counter("cache.db.rejected",
+                    "prefix", prefix, "strategy", tagOf(strategy)));
+        }
+        counter.increment();
+    }
+
+    /**
+     * 写入缓存空值 与空值命中数一起估算空值的数量和作用
+     */
+    public void nullWrite(String prefix, long count) {
+        if (count > 0) {
+            PrefixMeters m = metersOf(prefix);
+            Counter counter = m.nullWrites;
+            if (counter == null) {
+                counter = m.nullWrites = registry.counter("cache.null.writes", "prefix", prefix);
+            }
+            counter.increment(count);
+        }
+    }
+
+    /**
+     * 被布隆过滤器拦截
+     */
+    public void bloomRejected(String prefix) {
+        PrefixMeters m = metersOf(prefix);
+        Counter counter = m.bloomRejected;
+        if (counter == null) {
+            counter = m.bloomRejected = registry.counter("cache.bloom.rejected", "prefix", prefix);
+        }
+        counter.increment();
+    }
+
+    /**
+     * 通过了布隆过滤器但数据库中不存在 即误判
+     */
+    public void bloomFalsePositive(String prefix) {
+        PrefixMeters m = metersOf(prefix);
+        Counter counter = m.bloomFalsePositives;
+        if (counter == null) {
+            counter = m.bloomFalsePositives = registry.counter("cache.bloom.false.positives", "prefix", prefix);
+        }
+        counter.increment();
+    }
+
+    /**
+     * redis GET 耗时
+     */
+    public Timer redisGet(String prefix) {
+        PrefixMeters m = metersOf(prefix);
+        Timer timer = m.redisGet;
+        if (timer == null) {
+            timer = m.redisGet = timer("cache.redis.get", "prefix", prefix);
+        }
+        return timer;
+    }
+
+    /**
+     * redis MGET 耗时
+     */
+    public Timer redisMultiGet(String prefix) {
+        PrefixMeters m = metersOf(prefix);
+        Timer timer = m.redisMultiGet;
+        if (timer == null) {
+            timer = m.redisMultiGet = timer("cache.redis.mget", "prefix", prefix);
+        }
+        return timer;
+    }
+
+    /**
+     * 解码耗时
+     */
+    public Timer decode(String prefix) {
+        PrefixMeters m = metersOf(prefix);
+        Timer timer = m.decode;
+        if (timer == null) {
+            timer = m.decode = timer("cache.decode", "prefix", prefix);
+        }
+        return timer;
+    }
+
+    /**
+     * 未命中后查询数据库的耗时
+     */
+    public Timer load(String prefix, CacheStrategy strategy) {
+        AtomicReferenceArray<Timer> loads = metersOf(prefix).loads;
+        Timer timer = loads.get(strategy.ordinal());
+        if (timer == null) {
+            timer = cache(loads, strategy.ordinal(), timer("cache.load", "prefix", prefix, "strategy", tagOf(strategy)));
+        }
+        return timer;
+    }
+
+    private PrefixMeters metersOf(String prefix) {
+        PrefixMeters m = meters.get(prefix);
+        return m != null ? m : meters.computeIfAbsent(prefix, k -> new PrefixMeters());
+    }
+
+    /**
+     * registry 对相同名称和标签返回同一个指标 并发创建时重复写入也是同一个实例
+     */
+    private static <M> M cache(AtomicReferenceArray<M> array, int index, M meter) {
+        array.set(index, meter);
+        return meter;
+    }
+
+    private Timer timer(String name, String... tags) {
+        return Timer.builder(name)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static String tagOf(CacheStrategy strategy) {
+        return strategy.name().toLowerCase();
+    }
+
+    /**
+     * 一个key前缀的指标 未使用的组合不注册
+     */
+    private static class PrefixMeters {
+
+        private final AtomicReferenceArray<Counter> requests = new AtomicReferenceArray<>(STRATEGY_COUNT * OUTCOME_COUNT);
+
+        private final AtomicReferenceArray<Counter> lockFailures = new AtomicReferenceArray<>(STRATEGY_COUNT);
+
+        private final AtomicReferenceArray<Counter> dbRejected = new AtomicReferenceArray<>(STRATEGY_COUNT);
+
+        private final AtomicReferenceArray<Timer> loads = new AtomicReferenceArray<>(STRATEGY_COUNT);
+
+        private volatile Counter nullWrites;
+
+        private volatile Counter bloomRejected;
+
+        private volatile Counter bloomFalsePositives;
+
+        private volatile Timer redisGet;
+
+        private volatile Timer redisMultiGet;
+
+        private volatile Timer decode;
+    }
+}
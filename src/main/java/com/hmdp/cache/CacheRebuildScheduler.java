@@ -0,0 +1,229 @@
+package com.hmdp.cache;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.utils.RedisConstants;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @className: CacheRebuildScheduler
+ * @description: 缓存重建线程池 每个缓存命名空间(key前缀)使用独立的有界队列
+ * 同一个key排队中的重建只执行一次 队列已满或数据库重建耗时过高时放弃重建 调用方继续返回旧数据
+ * @author: FengL
+ * @create: 2025/1/20 21:08
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    private final Map<String, Namespace> namespaces = new ConcurrentHashMap<>();
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 为命名空间指定线程数和队列长度 未注册的命名空间使用默认值
+     *
+     * @param namespace 缓存key前缀
+     * @param threads   线程数
+     * @param queueSize 队列长度
+     */
+    public void register(String namespace, int threads, int queueSize) {
+        namespaces.computeIfAbsent(namespace, k -> bindMetrics(new Namespace(k, threads, queueSize)));
+    }
+
+    /**
+     * 提交重建任务
+     *
+     * @param namespace 缓存key前缀
+     * @param key       去重使用的key 同一个key排队或执行中时不再提交
+     * @param task      重建任务
+     * @return false 未提交 调用方需要自行释放锁
+     */
+    public boolean submit(String namespace, String key, Runnable task) {
+        Namespace ns = namespaceOf(namespace);
+        if (!ns.queuedKeys.add(key)) {
+            ns.dedupedCount.incrementAndGet();
+            return false;
+        }
+        // 数据库已经很慢 队列中还有任务时不再增加压力  队列为空时放行一个任务用于探测耗时是否恢复
+        if (ns.latencyMillis > RedisConstants.CACHE_REBUILD_SHED_MILLIS && !ns.executor.getQueue().isEmpty()) {
+            ns.queuedKeys.remove(key);
+            ns.shedCount.incrementAndGet();
+            return false;
+        }
+        long submitNanos = System.nanoTime();
+        try {
+            ns.executor.execute(() -> {
+                ns.waitTimer.record(System.nanoTime() - submitNanos, TimeUnit.NANOSECONDS);
+                long begin = System.currentTimeMillis();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("缓存重建失败 key:{}", key, e);
+                } finally {
+                    ns.recordLatency(System.currentTimeMillis() - begin);
+                    ns.queuedKeys.remove(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            ns.queuedKeys.remove(key);
+            ns.rejectedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    public Set<String> getNamespaces() {
+        return namespaces.keySet();
+    }
+
+    /**
+     * 排队中的任务数
+     */
+    public int getQueueDepth(String namespace) {
+        return namespaceOf(namespace).executor.getQueue().size();
+    }
+
+    /**
+     * 执行中的任务数
+     */
+    public int getActiveCount(String namespace) {
+        return namespaceOf(namespace).executor.getActiveCount();
+    }
+
+    /**
+     * 已完成的重建数
+     */
+    public long getRebuildCount(String namespace) {
+        return namespaceOf(namespace).rebuildCount.get();
+    }
+
+    /**
+     * 最近重建耗时的指数移动平均值 毫秒
+     */
+    public long getLatencyMillis(String namespace) {
+        return namespaceOf(namespace).latencyMillis;
+    }
+
+    /**
+     * 队列已满被拒绝的重建数
+     */
+    public long getRejectedCount(String namespace) {
+        return namespaceOf(namespace).rejectedCount.get();
+    }
+
+    /**
+     * 数据库耗时过高被放弃的重建数
+     */
+    public long getShedCount(String namespace) {
+        return namespaceOf(namespace).shedCount.get();
+    }
+
+    /**
+     * 已在排队被合并的重建数
+     */
+    public long getDedupedCount(String namespace) {
+        return namespaceOf(namespace).dedupedCount.get();
+    }
+
+    private Namespace namespaceOf(String namespace) {
+        return namespaces.computeIfAbsent(namespace, k -> bindMetrics(new Namespace(k,
+                RedisConstants.CACHE_REBUILD_THREADS, RedisConstants.CACHE_REBUILD_QUEUE_SIZE)));
+    }
+
+    /**
+     * 注册命名空间的监控指标 直接引用线程池和计数器 采集时不经过 namespaces
+     */
+    private Namespace bindMetrics(Namespace ns) {
+        String prefix = ns.name;
+        Gauge.builder("cache.rebuild.queue", ns.executor, executor -> executor.getQueue().size())
+                .tag("prefix", prefix).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", ns.executor, ThreadPoolExecutor::getActiveCount)
+                .tag("prefix", prefix).register(meterRegistry);
+        Gauge.builder("cache.rebuild.latency", ns, n -> n.latencyMillis)
+                .tag("prefix", prefix).baseUnit("milliseconds").register(meterRegistry);
+        FunctionCounter.builder("cache.rebuild.completed", ns.rebuildCount, AtomicLong::get)
+                .tag("prefix", prefix).register(meterRegistry);
+        FunctionCounter.builder("cache.rebuild.rejected", ns.rejectedCount, AtomicLong::get)
+                .tag("prefix", prefix).register(meterRegistry);
+        FunctionCounter.builder("cache.rebuild.shed", ns.shedCount, AtomicLong::get)
+                .tag("prefix", prefix).register(meterRegistry);
+        FunctionCounter.builder("cache.rebuild.deduped", ns.dedupedCount, AtomicLong::get)
+                .tag("prefix", prefix).register(meterRegistry);
+        ns.waitTimer = Timer.builder("cache.rebuild.wait")
+                .tag("prefix", prefix)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        return ns;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        namespaces.values().forEach(ns -> ns.executor.shutdown());
+        for (Namespace ns : namespaces.values()) {
+            if (!ns.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("缓存重建线程池关闭超时 namespace:{} 丢弃任务数:{}",
+                        ns.name, ns.executor.shutdownNow().size());
+            }
+        }
+    }
+
+    private static class Namespace {
+
+        private final String name;
+
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * 排队或执行中的key
+         */
+        private final Set<String> queuedKeys = ConcurrentHashMap.newKeySet();
+
+        private final AtomicLong rebuildCount = new AtomicLong();
+
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        private final AtomicLong shedCount = new AtomicLong();
+
+        private final AtomicLong dedupedCount = new AtomicLong();
+
+        private volatile long latencyMillis;
+
+        /**
+         * 任务在队列中的等待耗时
+         */
+        private Timer waitTimer;
+
+        Namespace(String name, int threads, int queueSize) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    ThreadUtil.newNamedThreadFactory("cache-rebuild-" + name.replace(':', '-'), true),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        /**
+         * 指数移动平均 新样本权重 1/4
+         */
+        private synchronized void recordLatency(long millis) {
+            rebuildCount.incrementAndGet();
+            latencyMillis = latencyMillis == 0 ? millis : (latencyMillis * 3 + millis) / 4;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.hmdp.cache;
+
+/**
+ * @className: CacheStrategy
+ * @description: 缓存查询策略 对应 CacheClient 中的查询方法
+ * @author: FengL
+ * @create: 2025/1/21 20:15
+ */
+public enum CacheStrategy {
+
+    /**
+     * 缓存空值 解决缓存穿透
+     */
+    PASS_THROUGH,
+
+    /**
+     * 互斥锁 解决缓存击穿
+     */
+    MUTEX,
+
+    /**
+     * 逻辑过期 解决缓存击穿 数据需要提前预热
+     */
+    LOGICAL_EXPIRE
+}
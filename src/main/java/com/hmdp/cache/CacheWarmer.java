@@ -0,0 +1,176 @@
+package com.hmdp.cache;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.seckill.SeckillPreheater;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @className: CacheWarmer
+ * @description: 启动时缓存预热
+ * 按主键分批读取店铺 多个线程并行编码并通过pipeline批量写入redis 写入时不广播失效消息
+ * 预热在后台线程执行 不阻塞启动事件 完成比例达到 CACHE_WARM_READY_RATIO 或超时前 readiness 探针返回 OUT_OF_SERVICE
+ * @author: FengL
+ * @create: 2025/1/18 15:12
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements HealthIndicator {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SeckillPreheater seckillPreheater;
+
+    /**
+     * 预热开始时间 0表示还未开始
+     */
+    private volatile long startMillis;
+
+    private volatile boolean ready;
+
+    /**
+     * 启动完成后在后台线程预热 不占用启动事件的发布线程
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        startMillis = System.currentTimeMillis();
+        Thread warmer = new Thread(() -> {
+            try {
+                warmShopTypes();
+                warmSeckillStock();
+                warmShops();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // 预热失败不影响启动 未命中的数据由缓存查询回源
+                log.error("缓存预热失败", e);
+            } finally {
+                // 部分批次失败时就绪比例可能达不到 预热结束后不再阻塞就绪
+                ready = true;
+            }
+        }, "cache-warmer-reader");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * 加入 readiness 健康组 预热达到就绪比例或超时前不接收流量
+     */
+    @Override
+    public Health health() {
+        long start = startMillis;
+        if (ready || (start > 0 && System.currentTimeMillis() - start > TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_WARM_TIMEOUT))) {
+            return Health.up().build();
+        }
+        return Health.outOfService().build();
+    }
+
+    /**
+     * 店铺类型数量很少 直接写入 key与 ShopTypeServiceImpl 的缓存注解保持一致
+     */
+    private void warmShopTypes() {
+        List<ShopType> shopTypeList = shopTypeService.query().orderByAsc("sort").list();
+        if (!shopTypeList.isEmpty()) {
+            cacheClient.set(RedisConstants.CACHE_SHOP_TYPE_KEY, shopTypeList, RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        }
+        log.info("店铺类型缓存预热完成 数量:{}", shopTypeList.size());
+    }
+
+    /**
+     * 即将开始和进行中的秒杀券 未预热过的写入库存和已下单用户 已存在的库存不覆盖
+     */
+    private void warmSeckillStock() {
+        seckillPreheater.poll();
+        log.info("秒杀库存缓存预热完成");
+    }
+
+    /**
+     * 按主键分页查询店铺 写入线程池并行编码和写入 达到就绪比例时标记就绪 全部写入或超时后返回
+     */
+    private void warmShops() throws InterruptedException {
+        long total = shopMapper.selectCount(null);
+        if (total == 0) {
+            return;
+        }
+        long readyCount = (long) Math.ceil(total * RedisConstants.CACHE_WARM_READY_RATIO);
+        long begin = System.currentTimeMillis();
+        AtomicLong loaded = new AtomicLong();
+        ExecutorService writers = Executors.newFixedThreadPool(RedisConstants.CACHE_WARM_THREADS,
+                ThreadUtil.newNamedThreadFactory("cache-warmer-", false));
+        // 限制已读取未写入的批次数 避免读取过快占用内存
+        Semaphore pending = new Semaphore(RedisConstants.CACHE_WARM_THREADS * 2);
+        long lastId = 0;
+        try {
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + RedisConstants.CACHE_WARM_BATCH_SIZE));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+                pending.acquire();
+                writers.execute(() -> {
+                    try {
+                        cacheClient.warmBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, shops, Shop::getId,
+                                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                        long count = loaded.addAndGet(shops.size());
+                        long cost = Math.max(System.currentTimeMillis() - begin, 1);
+                        log.info("店铺缓存预热进度 {}/{} 速率:{}条/s", count, total, count * 1000 / cost);
+                        if (count >= readyCount) {
+                            ready = true;
+                        }
+                    } catch (Exception e) {
+                        log.error("店铺缓存预热批次写入失败 截止id:{}", shops.get(shops.size() - 1).getId(), e);
+                    } finally {
+                        pending.release();
+                    }
+                });
+                if (shops.size() < RedisConstants.CACHE_WARM_BATCH_SIZE) {
+                    break;
+                }
+            }
+            writers.shutdown();
+            if (!writers.awaitTermination(RedisConstants.CACHE_WARM_TIMEOUT, TimeUnit.SECONDS)) {
+                log.warn("店铺缓存预热超时 当前进度 {}/{}", loaded.get(), total);
+            }
+            long cost = Math.max(System.currentTimeMillis() - begin, 1);
+            log.info("店铺缓存预热完成 数量:{}/{} 耗时:{}ms 速率:{}条/s",
+                    loaded.get(), total, cost, loaded.get() * 1000 / cost);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("店铺缓存预热失败 截止id:{}", lastId, e);
+        } finally {
+            writers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.hmdp.cache;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * @className: HmCacheAspect
+ * @description: 缓存注解切面 @HmCached 按策略交给 CacheClient 查询  @HmCacheEvict 交给 CacheInvalidator 删除
+ * 同一个类内部调用不会经过切面 需要通过 AopContext.currentProxy() 调用
+ * 空集合按空值缓存 使用 CACHE_NULL_TTL 返回时再转换为空集合 避免数据为空时缓存整个有效期
+ * @author: FengL
+ * @create: 2025/1/21 20:31
+ */
+@Aspect
+@Component
+public class HmCacheAspect {
+
+    private final ExpressionParser parser = new SpelExpressionParser();
+
+    private final ParameterNameDiscoverer nameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    /**
+     * 解析后的SpEL表达式
+     */
+    private final Map<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Around("@annotation(cached)")
+    public Object cached(ProceedingJoinPoint joinPoint, HmCached cached) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Object id = keyOf(cached.key(), joinPoint, method);
+        // 返回值的泛型类型 用于List等类型的反序列化
+        Type type = method.getGenericReturnType();
+        // 目标方法即数据库查询 逻辑过期的重建在其他线程中执行 proceed 会复制调用 可以重复执行
+        Function<Object, Object> dbFallback = k -> emptyToNull(proceed(joinPoint));
+        String prefix = cached.prefix();
+        if (cached.l1()) {
+            cacheClient.registerLocalCache(prefix, RedisConstants.CACHE_LOCAL_SIZE, RedisConstants.CACHE_LOCAL_TTL, TimeUnit.SECONDS);
+        }
+        Object result;
+        switch (cached.strategy()) {
+            case MUTEX:
+                result = cacheClient.queryWithMutex(prefix, id, type, dbFallback, cached.ttl(), cached.unit());
+                break;
+            case LOGICAL_EXPIRE:
+                result = cacheClient.queryWithLogicalExpire(prefix, id, type, dbFallback, cached.ttl(), cached.unit());
+                break;
+            default:
+                result = cacheClient.queryWithPassThrough(prefix, id, type, dbFallback, cached.ttl(), cached.unit());
+        }
+        return result == null ? emptyOf(method.getReturnType()) : result;
+    }
+
+    @AfterReturning("@annotation(evict)")
+    public void evict(JoinPoint joinPoint, HmCacheEvict evict) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Object id = keyOf(evict.key(), joinPoint, method);
+        if (id != null) {
+            cacheInvalidator.invalidate(evict.prefix() + id);
+        }
+    }
+
+    private Object proceed(ProceedingJoinPoint joinPoint) {
+        try {
+            return joinPoint.proceed();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Object emptyToNull(Object value) {
+        if (value instanceof Collection && ((Collection<?>) value).isEmpty()
+                || value instanceof Map && ((Map<?, ?>) value).isEmpty()) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * 返回值声明为集合接口时 空值转换为空集合 Object等其他类型仍返回null
+     */
+    private static Object emptyOf(Class<?> returnType) {
+        if (returnType == List.class || returnType == Collection.class) {
+            return new ArrayList<>();
+        }
+        if (returnType == Set.class) {
+            return new HashSet<>();
+        }
+        if (returnType == Map.class) {
+            return new HashMap<>();
+        }
+        return null;
+    }
+
+    /**
+     * 计算拼接在前缀后的key
+     */
+    private Object keyOf(String key, JoinPoint joinPoint, Method method) {
+        Object[] args = joinPoint.getArgs();
+        if (StrUtil.isBlank(key)) {
+            return args.length == 0 ? "" : args[0];
+        }
+        Expression expression = expressions.computeIfAbsent(key, parser::parseExpression);
+        return expression.getValue(new MethodBasedEvaluationContext(joinPoint.getTarget(), method, args, nameDiscoverer));
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.cache;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * @className: HmCacheEvict
+ * @description: 方法执行成功后删除缓存 在事务中时等事务提交后删除
+ * @author: FengL
+ * @create: 2025/1/21 20:24
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmCacheEvict {
+
+    /**
+     * 缓存key前缀
+     */
+    String prefix();
+
+    /**
+     * 拼接在前缀后的key SpEL表达式 如 #shop.id  为空时取第一个参数 没有参数时只使用前缀
+     */
+    String key() default "";
+}
@@ -0,0 +1,45 @@
+package com.hmdp.cache;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @className: HmCached
+ * @description: 方法返回值缓存 由 HmCacheAspect 按策略交给 CacheClient 查询
+ * 方法本身即数据库查询 缓存未命中或重建时调用
+ * @author: FengL
+ * @create: 2025/1/21 20:18
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmCached {
+
+    /**
+     * 缓存key前缀
+     */
+    String prefix();
+
+    /**
+     * 拼接在前缀后的key SpEL表达式 如 #id  为空时取第一个参数 没有参数时只使用前缀
+     */
+    String key() default "";
+
+    /**
+     * 有效期 逻辑过期策略为逻辑过期时间
+     */
+    long ttl();
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    CacheStrategy strategy() default CacheStrategy.PASS_THROUGH;
+
+    /**
+     * 是否开启本地一级缓存
+     */
+    boolean l1() default false;
+}
@@ -0,0 +1,165 @@
+package com.hmdp.cache;
+
+import cn.hutool.core.util.HashUtil;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * @className: HotKeyDetector
+ * @description: 热点key探测 滑动窗口的count-min sketch 并记录访问次数最多的前K个key
+ * 窗口分为多个时间片 每个时间片一个sketch 估算次数为所有时间片之和 由调用方定时调用 rotate 滑动窗口
+ * count-min sketch 只会高估不会低估 宽度越大误差越小
+ * 记录访问时不加锁 超过前K最小次数的key先放入候选集合 滑动窗口时再合并到前K个key中
+ * @author: FengL
+ * @create: 2025/1/23 20:16
+ */
+public class HotKeyDetector {
+
+    private final int depth;
+
+    private final int width;
+
+    private final int topK;
+
+    /**
+     * 每个时间片一个sketch 按行存放 depth * width
+     */
+    private final AtomicLongArray[] slots;
+
+    private volatile int current;
+
+    /**
+     * 访问次数最多的key -> 估算次数
+     */
+    private final Map<String, Long> topKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 超过 minTopCount 的候选key -> 估算次数 最多 topK 个 在 rotate 中合并
+     */
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * topKeys 中最小的估算次数 超过时才成为候选
+     */
+    private volatile long minTopCount;
+
+    /**
+     * @param slotCount 窗口时间片数
+     * @param depth     哈希函数个数
+     * @param width     每行计数器个数
+     * @param topK      记录的热点key个数
+     */
+    public HotKeyDetector(int slotCount, int depth, int width, int topK) {
+        this.depth = depth;
+        this.width = width;
+        this.topK = topK;
+        this.slots = new AtomicLongArray[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new AtomicLongArray(depth * width);
+        }
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param key
+     * @return 窗口内的估算访问次数
+     */
+    public long record(String key) {
+        int h1 = key.hashCode();
+        int h2 = HashUtil.fnvHash(key) | 1;
+        AtomicLongArray slot = slots[current];
+        for (int i = 0; i < depth; i++) {
+            slot.incrementAndGet(i * width + index(h1, h2, i));
+        }
+        long count = estimate(h1, h2);
+        updateTopKeys(key, count);
+        return count;
+    }
+
+    /**
+     * 窗口内的估算访问次数
+     */
+    public long estimate(String key) {
+        return estimate(key.hashCode(), HashUtil.fnvHash(key) | 1);
+    }
+
+    /**
+     * 滑动窗口 清空最早的时间片 合并候选key 并重新估算前K个key
+     */
+    public synchronized void rotate() {
+        int next = (current + 1) % slots.length;
+        AtomicLongArray slot = slots[next];
+        for (int i = 0; i < slot.length(); i++) {
+            slot.set(i, 0);
+        }
+        current = next;
+        for (String key : candidates.keySet()) {
+            candidates.remove(key);
+            topKeys.put(key, 0L);
+        }
+        topKeys.replaceAll((key, count) -> estimate(key));
+        topKeys.values().removeIf(count -> count == 0);
+        if (topKeys.size() > topK) {
+            // 只保留次数最多的K个
+            topKeys.entrySet().stream()
+                    .sorted(Map.Entry.comparingByValue())
+                    .limit(topKeys.size() - topK)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList())
+                    .forEach(topKeys::remove);
+        }
+        minTopCount = topKeys.size() < topK ? 0 : topKeys.values().stream().min(Long::compare).orElse(0L);
+    }
+
+    /**
+     * 访问次数最多的前K个key 按次数倒序
+     */
+    public Map<String, Long> getTopKeys() {
+        return topKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
+    }
+
+    private void updateTopKeys(String key, long count) {
+        if (topKeys.computeIfPresent(key, (k, v) -> count) != null) {
+            return;
+        }
+        if (topKeys.size() < topK) {
+            topKeys.put(key, count);
+            return;
+        }
+        if (count <= minTopCount) {
+            return;
+        }
+        // 候选集合已满时放弃 仍然热点的key在下个时间片还会成为候选
+        if (candidates.containsKey(key) || candidates.size() < topK) {
+            candidates.put(key, count);
+        }
+    }
+
+    private long estimate(int h1, int h2) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int offset = i * width + index(h1, h2, i);
+            long sum = 0;
+            for (AtomicLongArray slot : slots) {
+                sum += slot.get(offset);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * 两个哈希值组合出第i个哈希函数
+     */
+    private int index(int h1, int h2, int i) {
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % width;
+    }
+}
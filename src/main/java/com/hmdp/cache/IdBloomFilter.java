@@ -0,0 +1,115 @@
+package com.hmdp.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @className: IdBloomFilter
+ * @description: 基于long数组的本地布隆过滤器 只存放数据库主键
+ * @author: FengL
+ * @create: 2025/1/14 21:37
+ */
+public class IdBloomFilter {
+
+    /**
+     * 位数组长度
+     */
+    private final long bitSize;
+
+    /**
+     * 哈希函数个数
+     */
+    private final int hashCount;
+
+    private final AtomicLongArray words;
+
+    /**
+     * @param expectedInsertions 预计插入数量
+     * @param fpp                期望误判率
+     */
+    public IdBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n*ln(p)/(ln2)^2   k = m/n*ln2
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bitSize = Math.max(64, (m + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+        this.words = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    private IdBloomFilter(int hashCount, long[] words) {
+        this.bitSize = (long) words.length * 64;
+        this.hashCount = hashCount;
+        this.words = new AtomicLongArray(words);
+    }
+
+    public void put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            int wordIndex = (int) (index >>> 6);
+            long mask = 1L << index;
+            long word;
+            // 已经置位的不再CAS
+            while (((word = words.get(wordIndex)) & mask) == 0) {
+                if (words.compareAndSet(wordIndex, word, word | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 根据当前置位比例估算误判率 (置位数/总位数)^k
+     */
+    public double expectedFpp() {
+        long bitCount = 0;
+        for (int i = 0; i < words.length(); i++) {
+            bitCount += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) bitCount / bitSize, hashCount);
+    }
+
+    /**
+     * 序列化 用于备份到redis  4字节哈希函数个数 + 位数组
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + words.length() * 8);
+        buffer.putInt(hashCount);
+        for (int i = 0; i < words.length(); i++) {
+            buffer.putLong(words.get(i));
+        }
+        return buffer.array();
+    }
+
+    public static IdBloomFilter fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int hashCount = buffer.getInt();
+        long[] words = new long[buffer.remaining() / 8];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buffer.getLong();
+        }
+        return new IdBloomFilter(hashCount, words);
+    }
+
+    /**
+     * 64位混淆 使连续的自增id均匀分布
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp.cache;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.RedisData;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * @className: JsonCacheCodec
+ * @description: hutool json 编解码 兼容旧版本写入的数据
+ * 带逻辑过期时间的数据包装为RedisData 否则直接存放数据的json 不记录重建耗时
+ * @author: FengL
+ * @create: 2025/1/16 21:20
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value, long expireMillis, int deltaMillis) {
+        if (expireMillis <= 0) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] == '{' || bytes[0] == '[');
+    }
+
+    @Override
+    public long readExpireMillis(byte[] bytes) {
+        RedisData redisData = toRedisData(bytes);
+        if (redisData == null) {
+            return 0;
+        }
+        return redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Type type) {
+        RedisData redisData = toRedisData(bytes);
+        if (redisData == null) {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type, false);
+        }
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type, false);
+    }
+
+    /**
+     * 同时包含逻辑过期时间和数据的 视为逻辑过期数据
+     */
+    private RedisData toRedisData(byte[] bytes) {
+        if (bytes[0] != '{') {
+            return null;
+        }
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        if (json.size() != 2 || !json.containsKey("expireTime") || !(json.get("data") instanceof JSONObject)) {
+            return null;
+        }
+        return json.toBean(RedisData.class);
+    }
+}
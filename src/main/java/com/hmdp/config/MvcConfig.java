@@ -1,13 +1,17 @@
 package com.hmdp.config;
 
+import com.hmdp.interceptor.AdminInterceptor;
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.Set;
+
 /**
  * @className: MvcConfig
  * @description:
@@ -20,6 +24,11 @@ public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 管理员用户id 多个用逗号分隔
+     */
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminUserIds;
 
     /**
      * 配置拦截器
@@ -38,9 +47,15 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/blog/host",
                         "/shop/**",
                         "/shop-type/**",
-                        "/voucher/**"
+                        "/voucher/**",
+                        "/actuator/**"
                 ).order(1);
 
+        // 管理接口 拦截器
+        registry.addInterceptor(new AdminInterceptor(adminUserIds))
+                .addPathPatterns("/admin/**")
+                .order(2);
+
         // token 刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
     }
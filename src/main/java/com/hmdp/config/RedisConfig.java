@@ -0,0 +1,79 @@
+package com.hmdp.config;
+
+import com.hmdp.cache.BinaryCacheCodec;
+import com.hmdp.cache.CacheCodec;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * @className: RedisConfig
+ * @description: redis 配置
+ * @author: FengL
+ * @create: 2025/1/12 20:41
+ */
+@Configuration
+public class RedisConfig {
+
+    /**
+     * 消息监听容器 各组件在初始化时自行注册需要订阅的频道
+     *
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /**
+     * 缓存使用的 redisTemplate  key为字符串 value为编码后的字节数组
+     *
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    /**
+     * 缓存异步查询使用的 reactiveRedisTemplate  基于lettuce异步命令 不阻塞调用线程
+     *
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate(ReactiveRedisConnectionFactory connectionFactory) {
+        RedisSerializationContext<String, byte[]> context = RedisSerializationContext
+                .<String, byte[]>newSerializationContext(RedisSerializer.string())
+                .value(RedisSerializer.byteArray())
+                .hashValue(RedisSerializer.byteArray())
+                .build();
+        return new ReactiveRedisTemplate<>(connectionFactory, context);
+    }
+
+    /**
+     * 缓存写入使用的编码 读取时仍兼容json格式的旧数据
+     *
+     * @return
+     */
+    @Bean
+    public CacheCodec cacheCodec() {
+        return new BinaryCacheCodec();
+    }
+}
@@ -0,0 +1,33 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * @className: CacheAdminController
+ * @description: 缓存运行状态查询
+ * @author: FengL
+ * @create: 2025/1/23 21:40
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 当前访问次数最多的key 是否已提升为本地副本及副本命中率
+     *
+     * @return
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(cacheClient.getHotKeys());
+    }
+}
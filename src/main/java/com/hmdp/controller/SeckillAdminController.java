@@ -0,0 +1,70 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.seckill.SeckillReconciler;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWoker;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+
+/**
+ * @className: SeckillAdminController
+ * @description: 秒杀运维操作 /admin/** 只有管理员可以访问 见 AdminInterceptor
+ * @author: FengL
+ * @create: 2025/1/27 17:30
+ */
+@RestController
+@RequestMapping("/admin/seckill")
+public class SeckillAdminController {
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 对账 默认只报告不修复
+     *
+     * @param voucherId
+     * @param repair
+     * @return
+     */
+    @PostMapping("/reconcile/{id}")
+    public Result reconcile(@PathVariable("id") Long voucherId,
+                            @RequestParam(value = "repair", defaultValue = "false") Boolean repair) {
+        return Result.ok(seckillReconciler.reconcile(voucherId, repair));
+    }
+
+    /**
+     * 按时间范围查询所有用户的订单 默认最近一小时 用户查询自己的订单使用 /voucher-order/of/me
+     */
+    @GetMapping("/orders")
+    public Result queryOrdersByTime(
+            @RequestParam(value = "begin", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime begin,
+            @RequestParam(value = "end", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime end,
+            @RequestParam(value = "lastId", required = false) Long lastId) {
+        return voucherOrderService.queryOrdersByTime(begin, end, lastId);
+    }
+
+    /**
+     * 解析订单id的创建时间 雪花id同时解析生成节点的worker id
+     *
+     * @param id
+     * @param snowflake
+     * @return
+     */
+    @GetMapping("/order-id/{id}")
+    public Result decodeOrderId(@PathVariable("id") Long id,
+                                @RequestParam(value = "snowflake", defaultValue = "false") Boolean snowflake) {
+        return Result.ok(snowflake ? RedisIdWoker.decodeSnowflake(id) : RedisIdWoker.decode(id));
+    }
+}
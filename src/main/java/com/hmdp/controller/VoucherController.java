@@ -7,6 +7,7 @@ import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -51,7 +52,7 @@ public class VoucherController {
      * @return 优惠券列表
      */
     @GetMapping("/list/{shopId}")
-    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-       return voucherService.queryVoucherOfShop(shopId);
+    public CompletableFuture<Result> queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
+       return voucherService.queryVoucherOfShopAsync(shopId);
     }
 }
@@ -3,12 +3,16 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.time.LocalDate;
 
 /**
  * <p>
@@ -29,4 +33,18 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    @GetMapping("/of/me")
+    public Result queryMyOrders(@RequestParam(value = "lastId", required = false) Long lastId) {
+        return voucherOrderService.queryMyOrders(lastId);
+    }
+
+    /**
+     * 每日下单量 默认当天
+     */
+    @GetMapping("/count/daily")
+    public Result queryDailyCount(
+            @RequestParam(value = "date", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate date) {
+        return voucherOrderService.queryDailyCount(date);
+    }
 }
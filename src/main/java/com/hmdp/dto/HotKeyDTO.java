@@ -0,0 +1,19 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class HotKeyDTO {
+    private String key;
+    /**
+     * 窗口内的估算访问次数
+     */
+    private Long count;
+    /**
+     * 是否已提升为本地副本
+     */
+    private Boolean hot;
+    private Long hits;
+    private Long misses;
+    private Double hitRatio;
+}
@@ -0,0 +1,16 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class IdInfoDTO {
+    private Long id;
+    private LocalDateTime createTime;
+    /**
+     * 雪花id的worker id 号段id没有
+     */
+    private Integer workerId;
+    private Long sequence;
+}
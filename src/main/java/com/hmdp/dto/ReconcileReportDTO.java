@@ -0,0 +1,35 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class ReconcileReportDTO {
+    private Long voucherId;
+    /**
+     * 数据库中的订单数
+     */
+    private Long orders;
+    /**
+     * redis中的下单用户数
+     */
+    private Long buyers;
+    /**
+     * 有订单但不在redis下单用户中的用户数
+     */
+    private Long missingBuyers;
+    /**
+     * 在redis下单用户中但没有订单的用户数
+     */
+    private Long missingOrders;
+    private Integer dbStock;
+    private Long redisStock;
+    /**
+     * 订单stream中尚未写入数据库的消息数 大于0或秒杀尚未结束时不修复订单和库存
+     */
+    private Long backlog;
+    private Boolean repaired;
+    /**
+     * 跳过对账的原因
+     */
+    private String skipped;
+}
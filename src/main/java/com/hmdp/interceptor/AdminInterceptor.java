@@ -0,0 +1,41 @@
+package com.hmdp.interceptor;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+/**
+ * @className: AdminInterceptor
+ * @description: 管理接口拦截器 只允许配置的管理员用户访问 /admin/**
+ * @author: FengL
+ * @create: 2025/1/29 10:12
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminUserIds;
+
+    public AdminInterceptor(Set<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // 1. 未登录 拦截
+        UserDTO userDTO = UserHolder.getUser();
+        if (userDTO == null) {
+            response.setStatus(401);
+            return false;
+        }
+        // 2. 不是管理员 拦截
+        if (!adminUserIds.contains(userDTO.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        // 3. 放行
+        return true;
+    }
+}
@@ -4,11 +4,14 @@ import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -18,7 +21,7 @@ import java.util.concurrent.TimeUnit;
  * @author: FengL
  * @create: 2024/12/11 21:48
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
 
     private StringRedisTemplate stringRedisTemplate;
@@ -41,18 +44,28 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 1. 从请求头中获取token
         String token = request.getHeader("authorization");
-        // 2.根据token 从redis中获取user 信息
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(RedisConstants.LOGIN_USER_KEY + token);
+        if (token == null) {
+            return true;
+        }
+        // 2.根据token 从redis中获取user 信息 同时刷新token 令牌过期时间 pipeline一次往返
+        // token 不使用本地副本 登出或过期后立即失效
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.hGetAll(key);
+            stringConnection.expire(key, TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL));
+            return null;
+        });
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> userMap = (Map<Object, Object>) results.get(0);
         // 3. 判断用户是否存在 不存在 直接放行
-        if (userMap.isEmpty()) {
+        if (userMap == null || userMap.isEmpty()) {
             return true;
         }
         // 4. 存在 将用户信息 map转成userDto 存入ThreadLocal 中
         UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         UserHolder.saveUser(userDTO);
-        // 5. 刷新token 令牌过期时间
-        stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY + token, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
-        // 6. 放行
+        // 5. 放行
         return true;
     }
 
@@ -70,4 +83,17 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 删除用户信息
         UserHolder.removeUser();
     }
+
+    /**
+     * controller 返回 CompletableFuture 时 请求线程直接归还tomcat 当前线程不会调用 afterCompletion
+     * 在这里删除用户信息 避免线程被其他请求复用时读取到
+     *
+     * @param request
+     * @param response
+     * @param handler
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        UserHolder.removeUser();
+    }
 }
@@ -1,5 +1,7 @@
 package com.hmdp.lock;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * @className: ILock
  * @description:
@@ -9,13 +11,24 @@ package com.hmdp.lock;
 public interface ILock {
 
     /**
-     * 尝试获取锁
+     * 尝试获取锁 同一线程可以重入 重入几次就需要释放几次
      *
-     * @param timeoutSec 锁持有超时时间，过期后自动锁释放 防止死锁
+     * @param timeoutSec 锁持有超时时间，过期后自动锁释放 防止死锁 不会自动续期 不大于0时直接返回false
      * @return true 获取成功，false获取失败
      */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 尝试获取锁 锁被其他线程持有时等待锁释放的通知 最多等待 waitTime
+     *
+     * @param waitTime  最长等待时间 不大于0时只尝试一次
+     * @param leaseTime 锁持有超时时间 不大于0时由看门狗在持有期间自动续期 直到释放锁
+     * @param unit      时间单位
+     * @return true 获取成功，false等待超时
+     * @throws InterruptedException 等待时被中断
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
     /**
      * 释放锁
      */
@@ -0,0 +1,132 @@
+package com.hmdp.lock;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @className: LockPubSub
+ * @description: 锁释放通知 本节点同一个锁的等待线程共用一个频道订阅和信号量
+ * 每条释放消息只唤醒一个等待线程去竞争锁 信号量的许可数不超过等待线程数 没有等待线程后取消订阅
+ * 订阅和取消订阅需要访问redis 在 compute 之外执行 不阻塞其他频道
+ * addMessageListener 不等待redis的订阅确认 等待线程每次最多等待 SimpleRedisLock.NOTIFY_WAIT_MILLIS 后重新尝试
+ * @author: FengL
+ * @create: 2025/1/28 15:06
+ */
+@Component
+public class LockPubSub {
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 频道 -> 等待中的订阅
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 登记等待 第一个等待线程负责订阅频道 其他等待线程等待订阅完成
+     */
+    public Entry subscribe(String channel) {
+        Entry created = new Entry(channel);
+        Entry entry = entries.compute(channel, (key, current) -> {
+            Entry e = current == null ? created : current;
+            e.waiters++;
+            return e;
+        });
+        if (entry == created) {
+            try {
+                listenerContainer.addMessageListener(entry, new ChannelTopic(channel));
+                entry.subscribed.complete(null);
+            } catch (RuntimeException e) {
+                entry.subscribed.completeExceptionally(e);
+                unsubscribe(entry);
+                throw e;
+            }
+        } else {
+            try {
+                entry.subscribed.join();
+            } catch (RuntimeException e) {
+                unsubscribe(entry);
+                throw e;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * 结束等待 最后一个等待线程负责取消订阅
+     */
+    public void unsubscribe(Entry entry) {
+        boolean[] removed = new boolean[1];
+        entries.computeIfPresent(entry.channel, (key, current) -> {
+            if (current != entry || --current.waiters > 0) {
+                return current;
+            }
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0]) {
+            if (!entry.subscribed.isCompletedExceptionally()) {
+                listenerContainer.removeMessageListener(entry, new ChannelTopic(entry.channel));
+            }
+        } else {
+            entry.trimPermits();
+        }
+    }
+
+    public static class Entry implements MessageListener {
+
+        private final String channel;
+
+        private final Semaphore semaphore = new Semaphore(0);
+
+        private final CompletableFuture<Void> subscribed = new CompletableFuture<>();
+
+        /**
+         * 只在 compute 中修改
+         */
+        private volatile int waiters;
+
+        private Entry(String channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * 许可数不超过等待线程数 没有等待线程时的释放消息不会累积
+         */
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            if (semaphore.availablePermits() < waiters) {
+                semaphore.release();
+            }
+        }
+
+        /**
+         * 等待锁释放
+         *
+         * @return false 等待超时
+         */
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            return semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 等待线程离开后 回收多余的许可
+         */
+        private void trimPermits() {
+            while (semaphore.availablePermits() > waiters && semaphore.tryAcquire()) {
+                // 丢弃多余的许可
+            }
+        }
+    }
+}
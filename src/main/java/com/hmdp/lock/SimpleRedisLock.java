@@ -1,61 +1,272 @@
 package com.hmdp.lock;
 
 import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * @className: SimpleRedisLock
- * @description:
+ * @description: 可重入的redis分布式锁 锁为hash结构 持有者标识 -> 重入次数
+ * 指定租期时到期自动释放 没有指定租期时租期为30秒 持有期间由看门狗每10秒续期 节点宕机后锁在租期结束时自动释放
+ * 阻塞获取时订阅 lock:channel:{name} 频道 锁释放后由 LockPubSub 唤醒本节点一个等待线程 不再固定休眠重试
+ * 脚本由 DefaultRedisScript 计算sha1 执行时先用EVALSHA 返回NOSCRIPT时再用EVAL发送脚本
  * @author: FengL
  * @create: 2025/1/5 21:25
  */
+@Slf4j
 public class SimpleRedisLock implements ILock {
 
     private static final String KEY_PREFIX = "lock:";
 
+    private static final String CHANNEL_PREFIX = "lock:channel:";
+
+    /**
+     * 没有 LockPubSub 时的轮询间隔
+     */
+    private static final long POLL_MILLIS = 50;
+
+    /**
+     * 等待释放通知的最长间隔 addMessageListener 不等待订阅确认 确认前的释放通知会丢失 到时重新尝试获取
+     */
+    private static final long NOTIFY_WAIT_MILLIS = 100;
+
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
 
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT = new DefaultRedisScript<>();
+
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>();
 
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>();
+
     /**
      * 在静态代码块中初始化脚本
      */
     static {
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
         UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
         UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
     }
 
+    /**
+     * 看门狗 所有锁共用一个守护线程
+     */
+    private static final ScheduledExecutorService WATCHDOG =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("lock-watchdog-", true));
+
+    /**
+     * 看门狗续期的租期 持有者宕机后最多这么久锁自动释放
+     */
+    private static final long WATCHDOG_LEASE_MILLIS = 30000;
+
+    /**
+     * lock.lua 重入成功的返回值
+     */
+    private static final long REENTERED = -1;
+
+    /**
+     * 锁key:持有者标识 -> 续期任务 重入时不重复创建
+     */
+    private static final Map<String, Renewal> RENEWALS = new ConcurrentHashMap<>();
+
     private final String name;
     private final StringRedisTemplate stringRedisTemplate;
+    private final LockPubSub lockPubSub;
 
     public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+        this(name, stringRedisTemplate, null);
+    }
+
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub) {
         this.stringRedisTemplate = stringRedisTemplate;
         this.name = name;
+        this.lockPubSub = lockPubSub;
     }
 
     @Override
     public boolean tryLock(long timeoutSec) {
+        // 没有租期的锁不会自动释放 这个方法不使用看门狗
+        if (timeoutSec <= 0) {
+            return false;
+        }
         // 获取当前线程标识 加上uuid前缀 防止同个现场ID 存在误删情况
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        //获取锁
-        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(KEY_PREFIX + name, threadId, timeoutSec, TimeUnit.SECONDS);
-        // 防止拆箱时空指针异常
-        return Boolean.TRUE.equals(success);
+        return acquire(ownerId(), TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        String threadId = ownerId();
+        // 没有指定租期时使用看门狗
+        long leaseMillis = leaseTime > 0 ? unit.toMillis(leaseTime) : -1;
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        Long ttl = acquire(threadId, leaseMillis);
+        if (ttl == null) {
+            return true;
+        }
+        if (waitTime <= 0) {
+            return false;
+        }
+        // 先订阅再重试 避免错过订阅之前的释放通知
+        LockPubSub.Entry entry = lockPubSub == null ? null : lockPubSub.subscribe(CHANNEL_PREFIX + name);
+        try {
+            while (true) {
+                ttl = acquire(threadId, leaseMillis);
+                if (ttl == null) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 最多等到锁过期 持有者宕机时没有释放通知
+                long wait = ttl > 0 ? Math.min(ttl, remaining) : remaining;
+                if (entry == null) {
+                    Thread.sleep(Math.min(wait, POLL_MILLIS));
+                } else {
+                    entry.await(Math.min(wait, NOTIFY_WAIT_MILLIS));
+                }
+            }
+        } finally {
+            if (entry != null) {
+                lockPubSub.unsubscribe(entry);
+            }
+        }
     }
 
     @Override
     public void unlock() {
-        // 调用lua脚本 使得判断和释放锁操作 原子化
-        stringRedisTemplate.execute(
+        String threadId = ownerId();
+        // 调用lua脚本 使得判断和释放锁操作 原子化 返回0表示还有重入未释放
+        Long result = stringRedisTemplate.execute(
                 UNLOCK_SCRIPT,
+                Arrays.asList(KEY_PREFIX + name, CHANNEL_PREFIX + name),
+                threadId
+        );
+        if (result == null || result != 0) {
+            // 已释放或锁已经不属于当前线程 停止续期
+            Renewal renewal = RENEWALS.remove(renewalKey(threadId));
+            if (renewal != null) {
+                renewal.future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 获取锁 没有指定租期时首次获取成功后开始续期
+     * 重入时只在已有续期任务时记录获取次数 首次获取指定了租期的锁重入时不启动看门狗
+     *
+     * @param leaseMillis 租期 小于0时使用看门狗
+     * @return null 获取成功 否则为锁的剩余毫秒数
+     */
+    private Long acquire(String threadId, long leaseMillis) {
+        boolean watchdog = leaseMillis < 0;
+        Long ttl = stringRedisTemplate.execute(
+                LOCK_SCRIPT,
                 Collections.singletonList(KEY_PREFIX + name),
-                ID_PREFIX + Thread.currentThread().getId()
+                threadId, String.valueOf(watchdog ? WATCHDOG_LEASE_MILLIS : leaseMillis)
         );
+        if (ttl != null && ttl != REENTERED) {
+            return ttl;
+        }
+        if (watchdog) {
+            if (ttl == null) {
+                scheduleRenewal(threadId);
+            } else {
+                RENEWALS.computeIfPresent(renewalKey(threadId), (key, renewal) -> {
+                    renewal.acquires++;
+                    return renewal;
+                });
+            }
+        }
+        return null;
+    }
+
+    private String ownerId() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+
+    private String renewalKey(String threadId) {
+        return KEY_PREFIX + name + ":" + threadId;
+    }
+
+    /**
+     * 重入时沿用已有的续期任务 并记录获取次数 续期失败时据此判断期间是否重新获取过锁
+     */
+    private void scheduleRenewal(String threadId) {
+        RENEWALS.compute(renewalKey(threadId), (key, renewal) -> {
+            if (renewal == null) {
+                renewal = new Renewal(key, threadId);
+                long period = WATCHDOG_LEASE_MILLIS / 3;
+                renewal.future = WATCHDOG.scheduleAtFixedRate(renewal, period, period, TimeUnit.MILLISECONDS);
+            }
+            renewal.acquires++;
+            return renewal;
+        });
+    }
+
+    /**
+     * 一个持有者的续期任务
+     */
+    private class Renewal implements Runnable {
+
+        private final String key;
+
+        private final String threadId;
+
+        private volatile ScheduledFuture<?> future;
+
+        /**
+         * 只在 compute 中修改
+         */
+        private volatile long acquires;
+
+        private Renewal(String key, String threadId) {
+            this.key = key;
+            this.threadId = threadId;
+        }
+
+        @Override
+        public void run() {
+            long acquired = acquires;
+            Long renewed;
+            try {
+                renewed = stringRedisTemplate.execute(
+                        RENEW_SCRIPT,
+                        Collections.singletonList(KEY_PREFIX + name),
+                        threadId, String.valueOf(WATCHDOG_LEASE_MILLIS)
+                );
+            } catch (Exception e) {
+                // redis暂时不可用 下次继续尝试 锁在租期内仍有效
+                log.error("锁续期异常 name:{} owner:{}", name, threadId, e);
+                return;
+            }
+            if (renewed != null && renewed != 0) {
+                return;
+            }
+            // 锁已过期或被删除 只移除自己 续期期间同一线程重新获取了锁时保留
+            RENEWALS.computeIfPresent(key, (k, current) -> {
+                if (current != this || current.acquires != acquired) {
+                    return current;
+                }
+                log.warn("锁续期失败 锁已丢失 name:{} owner:{}", name, threadId);
+                future.cancel(false);
+                return null;
+            });
+        }
     }
 
 
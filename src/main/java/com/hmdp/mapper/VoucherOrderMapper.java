@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 一条 insert 写入多个订单 重复的订单(主键或同一用户同一优惠券)忽略
+     *
+     * @param orders
+     * @return 实际写入的行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
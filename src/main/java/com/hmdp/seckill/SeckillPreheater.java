@@ -0,0 +1,245 @@
+package com.hmdp.seckill;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.dto.ReconcileReportDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisIdWoker;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @className: SeckillPreheater
+ * @description: 秒杀券预热和收尾
+ * 开始前 SECKILL_PREHEAT_LEAD_MILLIS 写入库存 秒杀时间和已下单用户 预热店铺的优惠券列表缓存和订单id号段
+ * 到达开始时间时切换为 live 并再次预热优惠券列表 结束 SECKILL_TEARDOWN_DELAY_MILLIS 后对账并删除redis中的库存和下单用户
+ * 所有节点定时轮询 通过 seckill:preheat:{voucherId} 标记保证每个秒杀券只由一个节点预热和收尾
+ * @author: FengL
+ * @create: 2025/1/27 10:24
+ */
+@Slf4j
+@Component
+public class SeckillPreheater {
+
+    public static final String STATE_PREHEATED = "preheated";
+
+    public static final String STATE_LIVE = "live";
+
+    public static final String STATE_ENDED = "ended";
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedisIdWoker redisIdWoker;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 在开始时间切换为 live
+     */
+    private final ScheduledExecutorService activator =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-activator-", true));
+
+    /**
+     * 本节点已经处理过的秒杀券 轮询时不再访问redis
+     */
+    private final Set<Long> preheated = ConcurrentHashMap.newKeySet();
+
+    @PreDestroy
+    public void destroy() {
+        activator.shutdownNow();
+    }
+
+    /**
+     * 新增秒杀券后调用 距离开始不足预热时间的立即预热 其余由定时轮询预热
+     */
+    public void submit(SeckillVoucher voucher) {
+        long preheatAt = LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime()) - RedisConstants.SECKILL_PREHEAT_LEAD_MILLIS;
+        if (preheatAt <= System.currentTimeMillis()) {
+            preheat(voucher);
+        }
+    }
+
+    /**
+     * 1.预热即将开始和进行中的秒杀券
+     * 2.收尾结束一段时间的秒杀券 结束一天以上的不再处理
+     */
+    @Scheduled(fixedDelay = RedisConstants.SECKILL_PREHEAT_POLL_MILLIS)
+    public void poll() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> due = seckillVoucherService.query()
+                .le("begin_time", now.plus(RedisConstants.SECKILL_PREHEAT_LEAD_MILLIS, ChronoUnit.MILLIS))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : due) {
+            if (!preheated.contains(voucher.getVoucherId())) {
+                preheat(voucher);
+            }
+        }
+        LocalDateTime endBefore = now.minus(RedisConstants.SECKILL_TEARDOWN_DELAY_MILLIS, ChronoUnit.MILLIS);
+        List<SeckillVoucher> ended = seckillVoucherService.query()
+                .le("end_time", endBefore)
+                .gt("end_time", endBefore.minusDays(1))
+                .list();
+        for (SeckillVoucher voucher : ended) {
+            preheated.remove(voucher.getVoucherId());
+            // 删除成功的节点负责收尾
+            if (Boolean.TRUE.equals(stringRedisTemplate.delete(RedisConstants.SECKILL_PREHEAT_KEY + voucher.getVoucherId()))) {
+                teardown(voucher);
+            }
+        }
+    }
+
+    private void preheat(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        long now = System.currentTimeMillis();
+        long begin = LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime());
+        long end = LocalDateTimeUtil.toEpochMilli(voucher.getEndTime());
+        // 标记在收尾之后过期 避免收尾前被其他节点重复预热
+        long ttl = end - now + RedisConstants.SECKILL_TEARDOWN_DELAY_MILLIS + TimeUnit.DAYS.toMillis(1);
+        Boolean first = stringRedisTemplate.opsForValue()
+                .setIfAbsent(RedisConstants.SECKILL_PREHEAT_KEY + voucherId, "1", ttl, TimeUnit.MILLISECONDS);
+        preheated.add(voucherId);
+        if (!Boolean.TRUE.equals(first)) {
+            return;
+        }
+        try {
+            // 1.库存和秒杀时间 库存已存在时不覆盖
+            seckillStock.load(voucherId, voucher.getStock(), voucher.getBeginTime(), voucher.getEndTime());
+            // 2.已下单用户 服务重启或redis数据丢失后重新预热时保证一人一单
+            long buyers = loadBuyers(voucherId);
+            // 3.店铺的优惠券列表
+            warmVoucherList(voucherId);
+            // 4.提前分配订单id号段
+            redisIdWoker.preload("order");
+            setState(voucherId, STATE_PREHEATED);
+            activator.schedule(() -> activate(voucherId), Math.max(begin - now, 0), TimeUnit.MILLISECONDS);
+            log.info("秒杀券预热完成 voucherId:{} stock:{} buyers:{}", voucherId, voucher.getStock(), buyers);
+        } catch (Exception e) {
+            // 删除标记 下次轮询重试
+            stringRedisTemplate.delete(RedisConstants.SECKILL_PREHEAT_KEY + voucherId);
+            preheated.remove(voucherId);
+            log.error("秒杀券预热失败 voucherId:{}", voucherId, e);
+        }
+    }
+
+    /**
+     * 按主键分批读取订单 写入已下单用户集合
+     */
+    private long loadBuyers(Long voucherId) {
+        String key = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + RedisConstants.SECKILL_PRELOAD_BATCH_SIZE)
+                    .list();
+            if (orders.isEmpty()) {
+                return total;
+            }
+            String[] userIds = orders.stream().map(order -> order.getUserId().toString()).toArray(String[]::new);
+            stringRedisTemplate.opsForSet().add(key, userIds);
+            total += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+            if (orders.size() < RedisConstants.SECKILL_PRELOAD_BATCH_SIZE) {
+                return total;
+            }
+        }
+    }
+
+    /**
+     * key与 VoucherServiceImpl.queryVoucherListOfShop 的缓存注解保持一致
+     */
+    private void warmVoucherList(Long voucherId) {
+        Voucher voucher = voucherMapper.selectById(voucherId);
+        if (voucher == null) {
+            return;
+        }
+        cacheClient.set(RedisConstants.CACHE_VOUCHER_SHOP_KEY + voucher.getShopId(),
+                voucherMapper.queryVoucherOfShop(voucher.getShopId()), RedisConstants.CACHE_VOUCHER_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 下单资格由lua脚本和 SeckillVoucherRegistry 按开始时间判断 状态只用于展示和排查
+     * 优惠券列表缓存有效期很短 开始时再预热一次
+     */
+    private void activate(Long voucherId) {
+        try {
+            setState(voucherId, STATE_LIVE);
+            warmVoucherList(voucherId);
+            log.info("秒杀开始 voucherId:{}", voucherId);
+        } catch (Exception e) {
+            log.error("切换秒杀状态失败 voucherId:{}", voucherId, e);
+        }
+    }
+
+    /**
+     * 对账后删除redis中的库存和下单用户 对账被跳过或订单消息还没有全部写入数据库时恢复标记 下次轮询重试
+     */
+    private void teardown(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        try {
+            ReconcileReportDTO report = seckillReconciler.reconcile(voucherId, true);
+            if (report.getSkipped() != null) {
+                stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_PREHEAT_KEY + voucherId, "1", 1, TimeUnit.DAYS);
+                log.info("对账未执行 稍后收尾 voucherId:{} 原因:{}", voucherId, report.getSkipped());
+                return;
+            }
+            if (report.getBacklog() > 0) {
+                stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_PREHEAT_KEY + voucherId, "1", 1, TimeUnit.DAYS);
+                log.info("订单消息尚未处理完 稍后收尾 voucherId:{} backlog:{}", voucherId, report.getBacklog());
+                return;
+            }
+            seckillStock.clear(voucherId);
+            setState(voucherId, STATE_ENDED);
+            log.info("秒杀收尾完成 voucherId:{}", voucherId);
+        } catch (Exception e) {
+            log.error("秒杀收尾失败 voucherId:{}", voucherId, e);
+        }
+    }
+
+    private void setState(Long voucherId, String state) {
+        stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_META_KEY + voucherId, "state", state);
+    }
+}
@@ -0,0 +1,333 @@
+package com.hmdp.seckill;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.dto.ReconcileReportDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisIdWoker;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * @className: SeckillReconciler
+ * @description: 秒杀对账 redis下单资格与异步写入的订单和库存在宕机或部分失败后可能不一致
+ * 1.按主键分批读取订单 检查用户是否在redis下单用户中 不在则补充 避免重复下单
+ * 2.SSCAN分批读取redis下单用户 检查是否有订单 没有则重新创建订单
+ * 3.redis剩余库存与数据库库存不一致时 以数据库为准修正redis库存
+ * 进行中的秒杀券随时有新的下单用户还未写入数据库 2 3 只在秒杀结束且订单stream中没有未写入数据库的消息时修复
+ * 补单前再检查stream中是否有该用户的消息 并使用下单时记录的订单id 与消息中的订单主键冲突 不会产生第二个订单
+ * @author: FengL
+ * @create: 2025/1/27 16:52
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SeckillVoucherRegistry seckillVoucherRegistry;
+
+    @Resource
+    private RedisIdWoker redisIdWoker;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 执行定时对账 不占用定时任务线程 上一次还没执行完时最多再排队一次
+     */
+    private final ThreadPoolExecutor reconciler = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), ThreadUtil.newNamedThreadFactory("seckill-reconcile-", true),
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    @PreDestroy
+    public void destroy() {
+        reconciler.shutdownNow();
+    }
+
+    /**
+     * 每10分钟对进行中的秒杀券对账 只补充redis下单用户 订单和库存由结束后的收尾修复
+     */
+    @Scheduled(cron = "0 */10 * * * ?")
+    public void scheduledReconcile() {
+        reconciler.execute(this::reconcileLive);
+    }
+
+    private void reconcileLive() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query().le("begin_time", now).gt("end_time", now).list();
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                reconcile(voucher.getVoucherId(), true);
+            } catch (Exception e) {
+                log.error("秒杀对账失败 voucherId:{}", voucher.getVoucherId(), e);
+            }
+        }
+    }
+
+    /**
+     * 对账 同一个秒杀券同时只有一个节点执行
+     *
+     * @param voucherId
+     * @param repair    是否修复
+     * @return
+     */
+    public ReconcileReportDTO reconcile(Long voucherId, boolean repair) {
+        ReconcileReportDTO report = new ReconcileReportDTO();
+        report.setVoucherId(voucherId);
+        report.setRepaired(false);
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SECKILL_RECONCILE_KEY + voucherId);
+        if (!lock.tryLock()) {
+            report.setSkipped("其他节点正在对账");
+            return report;
+        }
+        try {
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher == null) {
+                report.setSkipped("秒杀券不存在");
+                return report;
+            }
+            Long redisStock = seckillStock.remaining(voucherId);
+            if (redisStock == null) {
+                report.setSkipped("redis中没有秒杀库存");
+                return report;
+            }
+            // 已确认的消息会被删除 stream长度即为所有秒杀券未写入数据库的订单数
+            Long backlog = stringRedisTemplate.opsForStream().size(RedisConstants.SECKILL_ORDER_STREAM);
+            report.setBacklog(backlog == null ? 0 : backlog);
+            boolean ended = voucher.getEndTime().isBefore(LocalDateTime.now());
+            boolean fix = repair && ended && report.getBacklog() == 0;
+
+            checkBuyers(voucherId, repair, report);
+            checkOrders(voucherId, fix, report);
+
+            // 补充订单会扣减数据库库存 重新查询
+            Integer dbStock = seckillVoucherService.getById(voucherId).getStock();
+            redisStock = seckillStock.remaining(voucherId);
+            report.setDbStock(dbStock);
+            report.setRedisStock(redisStock);
+            boolean stockMismatch = redisStock != null && redisStock != dbStock.longValue();
+            if (fix && stockMismatch) {
+                seckillStock.adjust(voucherId, dbStock - redisStock);
+                if (dbStock > redisStock) {
+                    // 通知所有节点 清除售罄标记
+                    seckillVoucherRegistry.reset(voucherId);
+                }
+            }
+            report.setRepaired(repair && report.getMissingBuyers() > 0
+                    || fix && (report.getMissingOrders() > 0 || stockMismatch));
+            if (report.getMissingBuyers() > 0 || report.getMissingOrders() > 0 || stockMismatch) {
+                log.warn("秒杀对账不一致 {}", report);
+            } else {
+                log.info("秒杀对账一致 {}", report);
+            }
+            return report;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按主键分批读取订单 pipeline检查用户是否在下单用户中
+     */
+    private void checkBuyers(Long voucherId, boolean repair, ReconcileReportDTO report) {
+        String key = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        long lastId = 0;
+        long orders = 0;
+        long missing = 0;
+        while (true) {
+            List<VoucherOrder> batch = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + RedisConstants.SECKILL_RECONCILE_BATCH_SIZE)
+                    .list();
+            if (batch.isEmpty()) {
+                break;
+            }
+            List<String> userIds = batch.stream().map(order -> order.getUserId().toString()).collect(Collectors.toList());
+            List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (String userId : userIds) {
+                    stringConnection.sIsMember(key, userId);
+                }
+                return null;
+            });
+            List<String> absent = new ArrayList<>();
+            for (int i = 0; i < userIds.size(); i++) {
+                if (!Boolean.TRUE.equals(exists.get(i))) {
+                    absent.add(userIds.get(i));
+                }
+            }
+            if (!absent.isEmpty()) {
+                missing += absent.size();
+                log.warn("订单用户不在redis下单用户中 voucherId:{} userIds:{}", voucherId, absent);
+                if (repair) {
+                    stringRedisTemplate.opsForSet().add(key, absent.toArray(new String[0]));
+                }
+            }
+            orders += batch.size();
+            lastId = batch.get(batch.size() - 1).getId();
+            if (batch.size() < RedisConstants.SECKILL_RECONCILE_BATCH_SIZE) {
+                break;
+            }
+        }
+        report.setOrders(orders);
+        report.setMissingBuyers(missing);
+    }
+
+    /**
+     * SSCAN分批读取下单用户 批量查询是否有订单
+     */
+    private void checkOrders(Long voucherId, boolean repair, ReconcileReportDTO report) {
+        long buyers = 0;
+        long missing = 0;
+        // 第一次需要补单时读取 整个对账只读取一次
+        Set<String> inFlight = null;
+        ScanOptions options = ScanOptions.scanOptions().count(RedisConstants.SECKILL_RECONCILE_BATCH_SIZE).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(RedisConstants.SECKILL_ORDER_KEY + voucherId, options)) {
+            List<String> batch = new ArrayList<>(RedisConstants.SECKILL_RECONCILE_BATCH_SIZE);
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() >= RedisConstants.SECKILL_RECONCILE_BATCH_SIZE || !cursor.hasNext()) {
+                    buyers += batch.size();
+                    List<String> absent = absentOrders(voucherId, batch);
+                    if (!absent.isEmpty()) {
+                        missing += absent.size();
+                        log.warn("redis下单用户没有订单 voucherId:{} userIds:{}", voucherId, absent);
+                        if (repair) {
+                            if (inFlight == null) {
+                                inFlight = inFlightUsers(voucherId);
+                            }
+                            replayAbsent(voucherId, absent, inFlight);
+                        }
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        report.setBuyers(buyers);
+        report.setMissingOrders(missing);
+    }
+
+    /**
+     * 补单前重新检查 订单消息仍在stream中或已经写入数据库的跳过
+     */
+    private void replayAbsent(Long voucherId, List<String> absent, Set<String> inFlight) {
+        for (String userId : absentOrders(voucherId, absent)) {
+            if (inFlight.contains(userId)) {
+                continue;
+            }
+            replay(voucherId, userId);
+        }
+    }
+
+    /**
+     * 没有订单的用户
+     */
+    private List<String> absentOrders(Long voucherId, List<String> userIds) {
+        Set<String> ordered = voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .in("user_id", userIds)
+                .list()
+                .stream()
+                .map(order -> order.getUserId().toString())
+                .collect(Collectors.toSet());
+        return userIds.stream().filter(userId -> !ordered.contains(userId)).collect(Collectors.toList());
+    }
+
+    /**
+     * 订单stream中该秒杀券的下单用户 包括已投递未确认的消息
+     * XRANGE 每次读取 SECKILL_RECONCILE_BATCH_SIZE 条 从上一批最后的id开始 跳过该条
+     */
+    private Set<String> inFlightUsers(Long voucherId) {
+        String id = voucherId.toString();
+        Set<String> users = new HashSet<>();
+        RedisZSetCommands.Limit limit = RedisZSetCommands.Limit.limit().count(RedisConstants.SECKILL_RECONCILE_BATCH_SIZE + 1);
+        Range<String> range = Range.unbounded();
+        RecordId lastId = null;
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(RedisConstants.SECKILL_ORDER_STREAM, range, limit);
+            if (records == null) {
+                break;
+            }
+            int read = 0;
+            for (MapRecord<String, Object, Object> record : records) {
+                if (record.getId().equals(lastId)) {
+                    continue;
+                }
+                read++;
+                lastId = record.getId();
+                if (id.equals(record.getValue().get("voucherId"))) {
+                    users.add(String.valueOf(record.getValue().get("userId")));
+                }
+            }
+            if (read < RedisConstants.SECKILL_RECONCILE_BATCH_SIZE) {
+                break;
+            }
+            range = Range.rightUnbounded(Range.Bound.inclusive(lastId.getValue()));
+        }
+        return users;
+    }
+
+    /**
+     * 订单消息已丢失 使用下单时记录的订单id创建订单 没有记录时重新生成
+     * 同一用户的订单已存在时被主键或 uk_user_voucher 拒绝
+     */
+    private void replay(Long voucherId, String userId) {
+        Long orderId = seckillStock.orderIdOf(voucherId, userId);
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId != null ? orderId : redisIdWoker.nextId("order"));
+        voucherOrder.setUserId(Long.valueOf(userId));
+        voucherOrder.setVoucherId(voucherId);
+        try {
+            voucherOrderService.createVoucherOrder(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            log.warn("订单已存在 voucherId:{} userId:{}", voucherId, userId);
+        } catch (IllegalStateException e) {
+            log.error("补单失败 数据库库存不足 voucherId:{} userId:{}", voucherId, userId);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.hmdp.seckill;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @className: SeckillStock
+ * @description: 秒杀库存 写入库存和秒杀时间 判断下单资格
+ * 库存达到 SECKILL_SEGMENT_THRESHOLD 的热点优惠券拆分为多个分段 seckill:stock:{voucherId:i}
+ * 哈希标签让各分段分布在集群的不同slot 用户按id路由到一个分段 该分段售罄后依次尝试其他分段
+ * 已售罄的分段记录在 seckill:soldout:{voucherId} 位图和本地掩码中 后续请求直接跳过
+ * 下单用户的订单id记录在 seckill:orderid:{voucherId} 中 对账补单时使用同一个订单id 与消息中的订单主键冲突
+ * @author: FengL
+ * @create: 2025/1/26 14:08
+ */
+@Slf4j
+@Component
+public class SeckillStock {
+
+    /**
+     * 资格判断结果 与lua脚本的返回值一致
+     */
+    public static final int OK = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+    public static final int NOT_FOUND = 5;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT = new DefaultRedisScript<>();
+
+    private static final DefaultRedisScript<Long> RESERVE_SCRIPT = new DefaultRedisScript<>();
+
+    private static final DefaultRedisScript<Long> SEGMENT_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        RESERVE_SCRIPT.setLocation(new ClassPathResource("seckill_reserve.lua"));
+        RESERVE_SCRIPT.setResultType(Long.class);
+        SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SEGMENT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 优惠券id -> 分段信息 只缓存分段模式的优惠券
+     * 不分段的优惠券记录为 NOT_SEGMENTED
+     */
+    private final Map<Long, Segments> segmentsMap = new ConcurrentHashMap<>();
+
+    private static final Segments NOT_SEGMENTED = new Segments(0);
+
+    /**
+     * 写入库存和秒杀时间 已存在的库存会被覆盖
+     */
+    public void init(Long voucherId, int stock, LocalDateTime beginTime, LocalDateTime endTime) {
+        write(voucherId, stock, beginTime, endTime, true);
+    }
+
+    /**
+     * 写入库存和秒杀时间 库存只在不存在时写入 避免覆盖正在扣减的库存
+     * 已经分段的优惠券保持原来的分段数
+     */
+    public void load(Long voucherId, int stock, LocalDateTime beginTime, LocalDateTime endTime) {
+        write(voucherId, stock, beginTime, endTime, false);
+    }
+
+    private void write(Long voucherId, int stock, LocalDateTime beginTime, LocalDateTime endTime, boolean overwrite) {
+        String metaKey = RedisConstants.SECKILL_META_KEY + voucherId;
+        int count = stock >= RedisConstants.SECKILL_SEGMENT_THRESHOLD ? RedisConstants.SECKILL_STOCK_SEGMENTS : 0;
+        if (!overwrite) {
+            Object segments = stringRedisTemplate.opsForHash().get(metaKey, "segments");
+            if (segments != null) {
+                count = Integer.parseInt(segments.toString());
+            }
+        }
+        if (count == 0) {
+            setStock(RedisConstants.SECKILL_STOCK_KEY + voucherId, stock, overwrite);
+        } else {
+            // 余数分给前面的分段 所有分段之和等于总库存
+            for (int i = 0; i < count; i++) {
+                int segmentStock = stock / count + (i < stock % count ? 1 : 0);
+                setStock(segmentKey(voucherId, i), segmentStock, overwrite);
+            }
+            if (overwrite) {
+                stringRedisTemplate.delete(RedisConstants.SECKILL_SOLD_OUT_KEY + voucherId);
+            }
+        }
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", String.valueOf(LocalDateTimeUtil.toEpochMilli(beginTime)));
+        meta.put("end", String.valueOf(LocalDateTimeUtil.toEpochMilli(endTime)));
+        meta.put("segments", String.valueOf(count));
+        stringRedisTemplate.opsForHash().putAll(metaKey, meta);
+        segmentsMap.put(voucherId, count == 0 ? NOT_SEGMENTED : new Segments(count));
+    }
+
+    private void setStock(String key, int stock, boolean overwrite) {
+        if (overwrite) {
+            stringRedisTemplate.opsForValue().set(key, String.valueOf(stock));
+        } else {
+            stringRedisTemplate.opsForValue().setIfAbsent(key, String.valueOf(stock));
+        }
+    }
+
+    /**
+     * 判断下单资格 有资格时扣减库存 记录下单用户并发送订单消息
+     *
+     * @return OK SOLD_OUT DUPLICATE NOT_STARTED ENDED NOT_FOUND
+     */
+    public int admit(Long voucherId, Long userId, long orderId) {
+        Segments segments = segmentsOf(voucherId);
+        if (segments == null || segments.count == 0) {
+            List<String> keys = Arrays.asList(
+                    RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                    RedisConstants.SECKILL_ORDER_KEY + voucherId,
+                    RedisConstants.SECKILL_META_KEY + voucherId,
+                    RedisConstants.SECKILL_ORDER_STREAM,
+                    RedisConstants.SECKILL_ORDER_ID_KEY + voucherId);
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys, userId.toString(),
+                    String.valueOf(System.currentTimeMillis()), String.valueOf(orderId), voucherId.toString());
+            return result == null ? NOT_FOUND : result.intValue();
+        }
+        return admitSegmented(voucherId, userId, orderId, segments);
+    }
+
+    /**
+     * 1.判断时间和一人一单 记录下单用户
+     * 2.从用户路由到的分段开始 依次扣减未售罄的分段
+     * 3.扣减成功后发送订单消息 所有分段都已售罄时删除下单用户
+     * 分段 下单用户 订单stream 在集群的不同slot 无法放在一个脚本中 三步之间出现异常时在 finally 中回滚
+     * 节点在两步之间宕机时 下单用户已记录但没有订单消息 由 SeckillReconciler 在秒杀结束后按记录的订单id补单
+     * 并以数据库库存修正redis库存 不会超卖也不会重复下单
+     */
+    private int admitSegmented(Long voucherId, Long userId, long orderId, Segments segments) {
+        if (segments.isAllSoldOut()) {
+            return SOLD_OUT;
+        }
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        String orderIdKey = RedisConstants.SECKILL_ORDER_ID_KEY + voucherId;
+        Long reserved = stringRedisTemplate.execute(RESERVE_SCRIPT,
+                Arrays.asList(orderKey, RedisConstants.SECKILL_META_KEY + voucherId, orderIdKey),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), String.valueOf(orderId));
+        if (reserved == null || reserved != OK) {
+            return reserved == null ? NOT_FOUND : reserved.intValue();
+        }
+        boolean success = false;
+        try {
+            int start = (int) (userId % segments.count);
+            for (int i = 0; i < segments.count; i++) {
+                int segment = (start + i) % segments.count;
+                if (segments.isSoldOut(segment)) {
+                    continue;
+                }
+                String segmentKey = segmentKey(voucherId, segment);
+                Long left = stringRedisTemplate.execute(SEGMENT_SCRIPT, Collections.singletonList(segmentKey));
+                if (left == null || left < 0) {
+                    // 该分段已被其他节点扣完 同步其他节点记录的售罄分段
+                    markSoldOut(voucherId, segments, segment);
+                    segments.merge(readSoldOut(voucherId, segments.count));
+                    continue;
+                }
+                try {
+                    sendOrder(voucherId, userId, orderId);
+                } catch (RuntimeException e) {
+                    stringRedisTemplate.opsForValue().increment(segmentKey);
+                    throw e;
+                }
+                if (left == 0) {
+                    markSoldOut(voucherId, segments, segment);
+                }
+                success = true;
+                return OK;
+            }
+            return SOLD_OUT;
+        } finally {
+            if (!success) {
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+                stringRedisTemplate.opsForHash().delete(orderIdKey, userId.toString());
+            }
+        }
+    }
+
+    /**
+     * redis中剩余的库存 分段模式为所有分段之和
+     *
+     * @return 库存不存在时返回 null
+     */
+    public Long remaining(Long voucherId) {
+        List<String> keys = stockKeys(voucherId);
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null || values.stream().allMatch(Objects::isNull)) {
+            return null;
+        }
+        return values.stream().filter(Objects::nonNull).mapToLong(Long::parseLong).sum();
+    }
+
+    /**
+     * 下单时分配的订单id
+     *
+     * @return 没有记录时返回 null
+     */
+    public Long orderIdOf(Long voucherId, String userId) {
+        Object orderId = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_ORDER_ID_KEY + voucherId, userId);
+        return orderId == null ? null : Long.valueOf(orderId.toString());
+    }
+
+    /**
+     * 秒杀结束后删除库存 售罄位图 下单用户和订单id 保留秒杀时间hash 记录秒杀状态
+     */
+    public void clear(Long voucherId) {
+        List<String> keys = new ArrayList<>(stockKeys(voucherId));
+        keys.add(RedisConstants.SECKILL_SOLD_OUT_KEY + voucherId);
+        keys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        keys.add(RedisConstants.SECKILL_ORDER_ID_KEY + voucherId);
+        stringRedisTemplate.delete(keys);
+        segmentsMap.remove(voucherId);
+    }
+
+    /**
+     * 修正redis库存 增加的库存平均分到各分段并清除这些分段的售罄标记 减少时依次从各分段扣除
+     * 增加库存后需要调用 SeckillVoucherRegistry.reset 清除所有节点的售罄标记
+     *
+     * @param delta 正数增加 负数减少
+     */
+    public void adjust(Long voucherId, long delta) {
+        List<String> keys = stockKeys(voucherId);
+        if (delta > 0) {
+            int count = keys.size();
+            for (int i = 0; i < count; i++) {
+                long add = delta / count + (i < delta % count ? 1 : 0);
+                if (add == 0) {
+                    continue;
+                }
+                stringRedisTemplate.opsForValue().increment(keys.get(i), add);
+                if (count > 1) {
+                    stringRedisTemplate.opsForValue().setBit(RedisConstants.SECKILL_SOLD_OUT_KEY + voucherId, i, false);
+                }
+            }
+            forget(voucherId);
+            return;
+        }
+        long need = -delta;
+        for (String key : keys) {
+            if (need == 0) {
+                return;
+            }
+            String value = stringRedisTemplate.opsForValue().get(key);
+            long take = Math.min(value == null ? 0 : Long.parseLong(value), need);
+            if (take > 0) {
+                stringRedisTemplate.opsForValue().increment(key, -take);
+                need -= take;
+            }
+        }
+    }
+
+    /**
+     * 删除本节点记录的分段售罄掩码 下次下单时重新读取售罄位图
+     */
+    public void forget(Long voucherId) {
+        segmentsMap.remove(voucherId);
+    }
+
+    /**
+     * 库存key 分段模式下每个分段一个key
+     */
+    private List<String> stockKeys(Long voucherId) {
+        Segments segments = segmentsOf(voucherId);
+        if (segments == null || segments.count == 0) {
+            return Collections.singletonList(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(segments.count);
+        for (int i = 0; i < segments.count; i++) {
+            keys.add(segmentKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * XADD stream.orders * userId .. voucherId .. id .. 字段与 seckill.lua 保持一致
+     */
+    private void sendOrder(Long voucherId, Long userId, long orderId) {
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(StreamRecords.string(order).withStreamKey(RedisConstants.SECKILL_ORDER_STREAM));
+    }
+
+    private void markSoldOut(Long voucherId, Segments segments, int segment) {
+        segments.markSoldOut(segment);
+        stringRedisTemplate.opsForValue().setBit(RedisConstants.SECKILL_SOLD_OUT_KEY + voucherId, segment, true);
+    }
+
+    /**
+     * 读取售罄位图 第i位表示第i个分段已售罄 位图中的偏移从每个字节的高位开始
+     */
+    private long readSoldOut(Long voucherId, int count) {
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get((RedisConstants.SECKILL_SOLD_OUT_KEY + voucherId).getBytes(StandardCharsets.UTF_8)));
+        long mask = 0;
+        for (int i = 0; bytes != null && i < count && (i >> 3) < bytes.length; i++) {
+            if ((bytes[i >> 3] & (0x80 >> (i & 7))) != 0) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * 分段数记录在秒杀时间hash中 优惠券不存在时不缓存
+     */
+    private Segments segmentsOf(Long voucherId) {
+        Segments segments = segmentsMap.get(voucherId);
+        if (segments != null) {
+            return segments;
+        }
+        Object value = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_META_KEY + voucherId, "segments");
+        if (value == null || StrUtil.isBlank(value.toString())) {
+            return null;
+        }
+        int count = Integer.parseInt(value.toString());
+        segments = count == 0 ? NOT_SEGMENTED : new Segments(count);
+        if (count > 0) {
+            segments.merge(readSoldOut(voucherId, count));
+        }
+        segmentsMap.put(voucherId, segments);
+        return segments;
+    }
+
+    public static String segmentKey(Long voucherId, int segment) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 本节点记录的分段数和售罄掩码 分段数不超过64
+     */
+    private static class Segments {
+
+        private final int count;
+
+        private final AtomicLong soldOut = new AtomicLong();
+
+        private Segments(int count) {
+            this.count = count;
+        }
+
+        private boolean isSoldOut(int segment) {
+            return (soldOut.get() & (1L << segment)) != 0;
+        }
+
+        private boolean isAllSoldOut() {
+            return count > 0 && Long.bitCount(soldOut.get()) >= count;
+        }
+
+        private void markSoldOut(int segment) {
+            merge(1L << segment);
+        }
+
+        private void merge(long mask) {
+            soldOut.accumulateAndGet(mask, (a, b) -> a | b);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.hmdp.seckill;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * @className: SeckillVoucherRegistry
+ * @description: 本节点的秒杀券信息 下单前在内存中判断秒杀时间和是否售罄 不满足条件的请求不访问redis
+ * 新增秒杀券 售罄和恢复库存时通过 seckill:voucher 频道通知所有节点 定时从数据库全量刷新 弥补丢失的消息
+ * 消息格式 节点id:refresh:优惠券id:开始时间:结束时间 节点id:soldout:优惠券id 或 节点id:reset:优惠券id
+ * @author: FengL
+ * @create: 2025/1/26 19:45
+ */
+@Slf4j
+@Component
+public class SeckillVoucherRegistry {
+
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    private static final String REFRESH = "refresh";
+
+    private static final String SOLD_OUT = "soldout";
+
+    private static final String RESET = "reset";
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 优惠券id -> 未结束的秒杀券
+     */
+    private final Map<Long, Entry> vouchers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = StrUtil.splitToArray(new String(message.getBody(), StandardCharsets.UTF_8), ':');
+            // 自己发出的消息 本地已经处理过
+            if (parts.length < 3 || NODE_ID.equals(parts[0])) {
+                return;
+            }
+            Long voucherId = Long.valueOf(parts[2]);
+            if (REFRESH.equals(parts[1]) && parts.length == 5) {
+                vouchers.put(voucherId, new Entry(Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+            } else if (SOLD_OUT.equals(parts[1])) {
+                Entry entry = vouchers.get(voucherId);
+                if (entry != null) {
+                    entry.soldOut = true;
+                }
+            } else if (RESET.equals(parts[1])) {
+                resetLocal(voucherId);
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_VOUCHER_CHANNEL));
+    }
+
+    /**
+     * 启动后加载 之后定时刷新 已结束的秒杀券删除
+     * 已售罄的标记在redis中仍没有库存时保留 有库存时清除 弥补丢失的 reset 消息
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedRate = RedisConstants.SECKILL_REGISTRY_REFRESH_MILLIS, initialDelay = RedisConstants.SECKILL_REGISTRY_REFRESH_MILLIS)
+    public void refresh() {
+        List<SeckillVoucher> list = seckillVoucherService.query().gt("end_time", LocalDateTime.now()).list();
+        Set<Long> ids = list.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toSet());
+        for (SeckillVoucher voucher : list) {
+            Entry entry = new Entry(LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime()),
+                    LocalDateTimeUtil.toEpochMilli(voucher.getEndTime()));
+            Entry old = vouchers.put(voucher.getVoucherId(), entry);
+            if (old != null && old.soldOut) {
+                Long remaining = seckillStock.remaining(voucher.getVoucherId());
+                entry.soldOut = remaining == null || remaining <= 0;
+                if (!entry.soldOut) {
+                    seckillStock.forget(voucher.getVoucherId());
+                }
+            }
+        }
+        vouchers.keySet().retainAll(ids);
+        log.debug("刷新秒杀券信息 数量:{}", vouchers.size());
+    }
+
+    /**
+     * 新增秒杀券后调用 在事务中调用时 等事务提交后再写入本节点并通知其他节点
+     */
+    public void register(SeckillVoucher voucher) {
+        long begin = LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime());
+        long end = LocalDateTimeUtil.toEpochMilli(voucher.getEndTime());
+        Runnable register = () -> {
+            vouchers.put(voucher.getVoucherId(), new Entry(begin, end));
+            publish(REFRESH + ":" + voucher.getVoucherId() + ":" + begin + ":" + end);
+        };
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            register.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                register.run();
+            }
+        });
+    }
+
+    /**
+     * 在内存中判断下单资格
+     *
+     * @return 本节点没有记录时返回 OK 由redis判断
+     */
+    public int check(Long voucherId, long now) {
+        Entry entry = vouchers.get(voucherId);
+        if (entry == null) {
+            return SeckillStock.OK;
+        }
+        if (now < entry.begin) {
+            return SeckillStock.NOT_STARTED;
+        }
+        if (now > entry.end) {
+            return SeckillStock.ENDED;
+        }
+        return entry.soldOut ? SeckillStock.SOLD_OUT : SeckillStock.OK;
+    }
+
+    /**
+     * redis返回库存不足后调用 本节点立即标记售罄 并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        Entry entry = vouchers.get(voucherId);
+        if (entry == null || entry.soldOut) {
+            return;
+        }
+        entry.soldOut = true;
+        publish(SOLD_OUT + ":" + voucherId);
+        log.info("秒杀券已售罄 voucherId:{}", voucherId);
+    }
+
+    /**
+     * 恢复库存后调用 清除所有节点的售罄标记和分段售罄掩码
+     */
+    public void reset(Long voucherId) {
+        resetLocal(voucherId);
+        publish(RESET + ":" + voucherId);
+        log.info("秒杀券恢复库存 voucherId:{}", voucherId);
+    }
+
+    private void resetLocal(Long voucherId) {
+        Entry entry = vouchers.get(voucherId);
+        if (entry != null) {
+            entry.soldOut = false;
+        }
+        seckillStock.forget(voucherId);
+    }
+
+    private void publish(String message) {
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_VOUCHER_CHANNEL, NODE_ID + ":" + message);
+    }
+
+    private static class Entry {
+
+        private final long begin;
+
+        private final long end;
+
+        private volatile boolean soldOut;
+
+        private Entry(long begin, long end) {
+            this.begin = begin;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.hmdp.seckill;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @className: VoucherOrderConsumer
+ * @description: 秒杀订单消息消费者 所有节点加入同一个消费者组 分摊 stream.orders 中的订单
+ * 订单攒批写入数据库 一批一个事务 事务提交后确认并删除消息 stream长度即为积压的订单数
+ * 定时认领宕机节点长时间未确认的消息 多次处理失败的消息转入死信stream
+ * @author: FengL
+ * @create: 2025/1/25 20:37
+ */
+@Slf4j
+@Component
+public class VoucherOrderConsumer {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    /**
+     * 消费者名称 同一台机器重启后名称不变 可以继续处理自己未确认的消息
+     */
+    private String consumerName;
+
+    private volatile boolean running = true;
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("seckill-order-", false));
+
+    private Counter processedCounter;
+
+    private Counter failedCounter;
+
+    private Counter claimedCounter;
+
+    private Counter deadCounter;
+
+    @PostConstruct
+    public void init() {
+        consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        createGroup();
+        bindMetrics();
+        executor.execute(this::consume);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        // 等待阻塞读取返回 正在处理的订单确认完成
+        if (!executor.awaitTermination(RedisConstants.SECKILL_ORDER_BLOCK_MILLIS * 2, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 创建消费者组 stream不存在时一起创建
+     * XGROUP CREATE stream.orders order-group 0 MKSTREAM
+     */
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    raw("CREATE"), raw(RedisConstants.SECKILL_ORDER_STREAM), raw(RedisConstants.SECKILL_ORDER_GROUP),
+                    raw("0"), raw("MKSTREAM")));
+            log.info("创建订单消费者组 {}", RedisConstants.SECKILL_ORDER_GROUP);
+        } catch (Exception e) {
+            // 消费者组已存在
+            if (!ExceptionUtil.getRootCauseMessage(e).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private void consume() {
+        // 启动时先处理上次未确认的消息
+        long nextRecoverMillis = 0;
+        while (running) {
+            try {
+                if (System.currentTimeMillis() >= nextRecoverMillis) {
+                    recover();
+                    nextRecoverMillis = System.currentTimeMillis() + RedisConstants.SECKILL_ORDER_RECOVER_MILLIS;
+                }
+                List<MapRecord<String, Object, Object>> records = readBatch();
+                if (!records.isEmpty()) {
+                    handle(records);
+                }
+            } catch (Exception e) {
+                log.error("读取订单消息异常", e);
+                ThreadUtil.sleep(1000);
+            }
+        }
+        log.info("订单消费线程退出 consumer:{}", consumerName);
+    }
+
+    /**
+     * 攒批读取订单 凑满一批或等待超过 linger 时间就返回
+     * 第一次读取阻塞等待新消息 之后只短暂等待 避免低峰期订单延迟过高
+     */
+    private List<MapRecord<String, Object, Object>> readBatch() {
+        Consumer consumer = Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName);
+        StreamOffset<String> offset = StreamOffset.create(RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.lastConsumed());
+        // XREADGROUP GROUP order-group consumer COUNT 100 BLOCK 2000 STREAMS stream.orders >
+        List<MapRecord<String, Object, Object>> first = stringRedisTemplate.opsForStream().read(consumer,
+                StreamReadOptions.empty()
+                        .count(RedisConstants.SECKILL_ORDER_BATCH_SIZE)
+                        .block(Duration.ofMillis(RedisConstants.SECKILL_ORDER_BLOCK_MILLIS)),
+                offset);
+        if (first == null || first.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(first);
+        long deadline = System.currentTimeMillis() + RedisConstants.SECKILL_ORDER_LINGER_MILLIS;
+        long remaining;
+        while (records.size() < RedisConstants.SECKILL_ORDER_BATCH_SIZE
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            // BLOCK 0 表示一直阻塞 remaining 必须大于0
+            List<MapRecord<String, Object, Object>> more = stringRedisTemplate.opsForStream().read(consumer,
+                    StreamReadOptions.empty()
+                            .count(RedisConstants.SECKILL_ORDER_BATCH_SIZE - records.size())
+                            .block(Duration.ofMillis(remaining)),
+                    offset);
+            if (more == null || more.isEmpty()) {
+                break;
+            }
+            records.addAll(more);
+        }
+        return records;
+    }
+
+    /**
+     * 整批订单在一个事务中保存 成功后统一确认
+     * 整批失败(主键冲突 库存不足等)时回滚 再逐条保存 失败的留在pending list中等待重试
+     */
+    private void handle(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        List<RecordId> done = new ArrayList<>(records.size());
+        try {
+            voucherOrderService.createVoucherOrders(voucherOrders);
+            records.forEach(record -> done.add(record.getId()));
+        } catch (Exception e) {
+            log.error("批量保存订单失败 逐条保存 数量:{}", records.size(), e);
+            done.addAll(handleOneByOne(records, voucherOrders));
+        }
+        ack(done);
+        processedCounter.increment(done.size());
+    }
+
+    /**
+     * 只确认订单已写入或已存在的消息 库存不足等失败的消息留在pending list中
+     * 重试超过 SECKILL_ORDER_MAX_DELIVERY 次后由 recover 转入死信
+     */
+    private List<RecordId> handleOneByOne(List<MapRecord<String, Object, Object>> records,
+                                          List<VoucherOrder> voucherOrders) {
+        List<RecordId> done = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            RecordId id = records.get(i).getId();
+            try {
+                voucherOrderService.createVoucherOrder(voucherOrders.get(i));
+                done.add(id);
+            } catch (DuplicateKeyException e) {
+                // 订单已存在 说明之前已经保存成功 直接确认
+                log.warn("订单已存在 recordId:{} orderId:{}", id, voucherOrders.get(i).getId());
+                done.add(id);
+            } catch (IllegalStateException e) {
+                failedCounter.increment();
+                log.error("数据库库存不足 订单未保存 等待重试或转入死信 recordId:{} orderId:{}",
+                        id, voucherOrders.get(i).getId());
+            } catch (Exception e) {
+                failedCounter.increment();
+                log.error("保存订单失败 等待重试 recordId:{}", id, e);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * 1.认领其他消费者空闲时间过长的消息 投递次数过多的转入死信
+     * 2.处理本消费者未确认的消息
+     */
+    private void recover() {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        PendingMessages pendingMessages = ops.pending(RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP,
+                Range.unbounded(), RedisConstants.SECKILL_ORDER_BATCH_SIZE);
+        List<RecordId> claimIds = new ArrayList<>();
+        List<RecordId> deadIds = new ArrayList<>();
+        for (PendingMessage message : pendingMessages) {
+            if (message.getTotalDeliveryCount() > RedisConstants.SECKILL_ORDER_MAX_DELIVERY) {
+                deadIds.add(message.getId());
+            } else if (!consumerName.equals(message.getConsumerName())
+                    && message.getElapsedTimeSinceLastDelivery().toMillis() >= RedisConstants.SECKILL_ORDER_CLAIM_IDLE_MILLIS) {
+                claimIds.add(message.getId());
+            }
+        }
+        if (!claimIds.isEmpty()) {
+            // XCLAIM 只认领仍然空闲的消息 避免与刚恢复的消费者重复处理
+            RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                    .minIdle(Duration.ofMillis(RedisConstants.SECKILL_ORDER_CLAIM_IDLE_MILLIS))
+                    .ids(claimIds.toArray(new RecordId[0]));
+            List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                    connection.xClaimJustId(raw(RedisConstants.SECKILL_ORDER_STREAM), RedisConstants.SECKILL_ORDER_GROUP,
+                            consumerName, options));
+            if (claimed != null && !claimed.isEmpty()) {
+                claimedCounter.increment(claimed.size());
+                log.warn("认领未确认的订单消息 数量:{}", claimed.size());
+            }
+        }
+        for (RecordId id : deadIds) {
+            List<MapRecord<String, Object, Object>> records = ops.range(RedisConstants.SECKILL_ORDER_STREAM,
+                    Range.closed(id.getValue(), id.getValue()));
+            if (records != null && !records.isEmpty()) {
+                ops.add(RedisConstants.SECKILL_ORDER_DEAD_STREAM, records.get(0).getValue());
+            }
+            log.error("订单消息多次处理失败 转入死信 recordId:{}", id);
+        }
+        ack(deadIds);
+        deadCounter.increment(deadIds.size());
+
+        // XREADGROUP ... STREAMS stream.orders 0 读取本消费者未确认的消息
+        List<MapRecord<String, Object, Object>> records = ops.read(
+                Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                StreamReadOptions.empty().count(RedisConstants.SECKILL_ORDER_BATCH_SIZE),
+                StreamOffset.create(RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.from("0")));
+        if (records != null && !records.isEmpty()) {
+            handle(records);
+        }
+    }
+
+    /**
+     * 确认并删除消息
+     */
+    private void ack(List<RecordId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        RecordId[] array = ids.toArray(new RecordId[0]);
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        ops.acknowledge(RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP, array);
+        ops.delete(RedisConstants.SECKILL_ORDER_STREAM, array);
+    }
+
+    /**
+     * 积压数 = stream长度 已确认的消息会被删除
+     * 未确认数 = pending list 长度
+     * 消费速率 = rate(seckill_order_processed_total)
+     */
+    private void bindMetrics() {
+        Gauge.builder("seckill.order.backlog", this, VoucherOrderConsumer::backlog).register(meterRegistry);
+        Gauge.builder("seckill.order.pending", this, VoucherOrderConsumer::pending).register(meterRegistry);
+        processedCounter = meterRegistry.counter("seckill.order.processed");
+        failedCounter = meterRegistry.counter("seckill.order.failed");
+        claimedCounter = meterRegistry.counter("seckill.order.claimed");
+        deadCounter = meterRegistry.counter("seckill.order.dead");
+    }
+
+    private double backlog() {
+        try {
+            Long size = stringRedisTemplate.opsForStream().size(RedisConstants.SECKILL_ORDER_STREAM);
+            return size == null ? 0 : size;
+        } catch (Exception e) {
+            return Double.NaN;
+        }
+    }
+
+    private double pending() {
+        try {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                    .pending(RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP);
+            return summary == null ? 0 : summary.getTotalPendingMessages();
+        } catch (Exception e) {
+            return Double.NaN;
+        }
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,25 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    /**
+     * 异步根据id查询店铺 不阻塞请求线程
+     *
+     * @param id
+     * @return
+     */
+    CompletableFuture<Result> queryByIdAsync(Long id);
+
+    /**
+     * 根据id查询店铺 优先从缓存中查询
+     *
+     * @param id
+     * @return 店铺 不存在返回null
+     */
+    Shop queryShopById(Long id);
+
     Result update(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current);
 }
@@ -17,4 +17,11 @@ import java.util.List;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryAll();
+
+    /**
+     * 按排序查询全部店铺类型 优先从缓存中查询
+     *
+     * @return
+     */
+    List<ShopType> queryTypeList();
 }
@@ -4,6 +4,10 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +20,43 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    Result createVoucherOrder(Long voucherId);
+    /**
+     * 保存已通过秒杀资格判断的订单 扣减数据库库存
+     *
+     * @param voucherOrder
+     */
+    void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 在一个事务中批量保存订单 每个优惠券只扣减一次库存 重复的订单忽略且不扣减库存
+     *
+     * @param voucherOrders
+     */
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 按时间范围查询订单 时间范围转换为主键范围 按id倒序滚动分页
+     *
+     * @param begin  默认结束时间前一小时
+     * @param end    默认当前时间
+     * @param lastId 上一页最后一个订单id
+     * @return
+     */
+    Result queryOrdersByTime(LocalDateTime begin, LocalDateTime end, Long lastId);
+
+    /**
+     * 当前用户最近 ORDER_HISTORY_DAYS 天的订单 按id倒序滚动分页
+     *
+     * @param lastId 上一页最后一个订单id
+     * @return
+     */
+    Result queryMyOrders(Long lastId);
+
+    /**
+     * 某一天的下单量 读取订单id的每日计数器
+     *
+     * @param date
+     * @return
+     */
+    Result queryDailyCount(LocalDate date);
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +19,21 @@ public interface IVoucherService extends IService<Voucher> {
 
     Result queryVoucherOfShop(Long shopId);
 
+    /**
+     * 异步查询店铺的优惠券列表 不阻塞请求线程
+     *
+     * @param shopId
+     * @return
+     */
+    CompletableFuture<Result> queryVoucherOfShopAsync(Long shopId);
+
+    /**
+     * 查询店铺的优惠券列表 优先从缓存中查询
+     *
+     * @param shopId
+     * @return
+     */
+    List<Voucher> queryVoucherListOfShop(Long shopId);
+
     void addSeckillVoucher(Voucher voucher);
 }
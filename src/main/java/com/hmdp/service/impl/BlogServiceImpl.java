@@ -1,11 +1,25 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
+import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +31,35 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Override
+    public Result queryHotBlog(Integer current) {
+        // 根据点赞数分页查询
+        Page<Blog> page = query()
+                .orderByDesc("liked")
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+        // 获取当前页数据
+        List<Blog> records = page.getRecords();
+        if (records.isEmpty()) {
+            return Result.ok(records);
+        }
+        // 批量查询用户 避免每篇博文单独查询一次
+        List<Long> userIds = records.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, User> userMap = cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_USER_KEY, userIds, User.class,
+                        userService::listByIds, User::getId, RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES)
+                .stream().collect(Collectors.toMap(User::getId, Function.identity()));
+        records.forEach(blog -> {
+            User user = userMap.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        });
+        return Result.ok(records);
+    }
 }
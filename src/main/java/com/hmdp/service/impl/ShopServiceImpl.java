@@ -1,27 +1,28 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.cache.BloomFilterManager;
+import com.hmdp.cache.CacheStrategy;
+import com.hmdp.cache.HmCacheEvict;
+import com.hmdp.cache.HmCached;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -34,24 +35,27 @@ import java.util.concurrent.TimeUnit;
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
-    @Autowired
-    private StringRedisTemplate stringRedisTemplate;
-
     @Resource
     private CacheClient cacheClient;
 
-    @Override
-    public Result queryById(Long id) {
+    @Resource
+    private BloomFilterManager bloomFilterManager;
 
-        // 缓存穿透
-        // Shop shop  = queryWithPassThrough(id);
-//         Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //互斥锁解决缓存击穿
-        // Shop shop = queryWithMutex(id);
+    /**
+     * 热点店铺数量有限 开启本地一级缓存
+     * 店铺缓存批量预热后会同时过期 开启提前刷新
+     */
+    @PostConstruct
+    public void init() {
+        cacheClient.registerLocalCache(RedisConstants.CACHE_SHOP_KEY, RedisConstants.CACHE_SHOP_LOCAL_SIZE,
+                RedisConstants.CACHE_SHOP_LOCAL_TTL, TimeUnit.SECONDS);
+        cacheClient.enableEarlyRefresh(RedisConstants.CACHE_SHOP_KEY, RedisConstants.CACHE_SHOP_REFRESH_BETA);
+    }
 
-        // 逻辑过期解决缓存击穿
-//        Shop shop = queryWithLogicalExpire(id);
-        Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    @Override
+    public Result queryById(Long id) {
+        // 通过代理对象调用 经过缓存切面  逻辑过期解决缓存击穿
+        Shop shop = ((IShopService) AopContext.currentProxy()).queryShopById(id);
         if (shop == null) {
             return Result.fail("店铺不存在!");
         }
@@ -60,201 +64,73 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
     /**
-     * 解决缓存穿透
-     *
-     * @param id
-     * @return
+     * 异步查询不经过缓存切面 直接调用 CacheClient 的异步方法 参数与 queryShopById 的注解保持一致
      */
-    public Shop queryWithPassThrough(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1.从redis查询商品信息
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.返回 直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断命中是否是空值
-        if (shopJson != null) {
-            return null;
-        }
-        // 4.不存在 根据id查询数据库
-        Shop shop = getById(id);
-        // 5.不存在 返回错误
-        if (shop == null) {
-            //将空值写入redis 避免缓存穿透
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        // 6.存在 写入redis中
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 7.返回
-        return shop;
-    }
-
-    /**
-     * 基于互斥锁解决缓存击穿问题
-     *
-     * @param id
-     * @return
-     */
-    public Shop queryWithMutex(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1.从redis查询商品信息
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.返回 直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断命中是否是空值
-        if (shopJson != null) {
-            return null;
-        }
-
-        // 4.实现缓存重建
-        // 4.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        Shop shop;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2 判断互斥锁是否获取成功
-            if (!isLock) {
-                //失败，则休眠重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            // 4.3 成功，再次检测redis中缓存是否存在信息
-            if (StrUtil.isNotBlank(stringRedisTemplate.opsForValue().get(key))) {
-                // 3.返回 直接返回
-                return JSONUtil.toBean(shopJson, Shop.class);
-            }
-
-            // 4.4根据id查询数据库
-            shop = getById(id);
-
-            //模拟重建的延迟
-            Thread.sleep(200);
-
-            // 5.不存在 返回错误
-            if (shop == null) {
-                //将空值写入redis 避免缓存穿透
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            // 6.存在 写入redis中
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7.释放互斥锁
-            unlock(lockKey);
-        }
-        // 8.返回
-        return shop;
-    }
-
-
-    private final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    /**
-     * 基于逻辑过期解决缓存击穿问题
-     *
-     * @param id
-     * @return
-     */
-    public Shop queryWithLogicalExpire(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1.从redis查询商品信息
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isBlank(shopJson)) {
-            // 不存在 直接返回
-            return null;
-        }
-
-        // 3.存在 将json 反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 4. 判断 是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.1未过期  直接返回店铺信息
-            return shop;
-        }
-
-        // 5. 过期  需要缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        // 5.1成功获取互斥锁
-        if (tryLock(lockKey)) {
-            // 5.2 成功，再次检测redis中缓存是否过期
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            redisData = JSONUtil.toBean(shopJson, RedisData.class);
-            shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-            expireTime = redisData.getExpireTime();
-            // 4. 判断 是否过期
-            if (expireTime.isAfter(LocalDateTime.now())) {
-                // 4.1未过期  直接返回店铺信息
-                return shop;
-            }
-            // 5.4  过期 开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                // 重建缓存
-                try {
-                    this.saveShop2Redis(id, 30L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
-
-        }
-        // 7.返回 过期商品信息
-        return shop;
+    @Override
+    public CompletableFuture<Result> queryByIdAsync(Long id) {
+        return cacheClient.queryWithLogicalExpireAsync(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                        RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                .thenApply(shop -> shop == null ? Result.fail("店铺不存在!") : Result.ok(shop));
     }
 
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(flag);
+    @Override
+    @HmCached(prefix = RedisConstants.CACHE_SHOP_KEY, ttl = RedisConstants.CACHE_SHOP_TTL,
+            strategy = CacheStrategy.LOGICAL_EXPIRE, l1 = true)
+    public Shop queryShopById(Long id) {
+        return getById(id);
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 写入布隆过滤器 否则新店铺会被当作不存在的数据拦截
+        bloomFilterManager.add(RedisConstants.CACHE_SHOP_KEY, shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     @Override
     @Transactional
+    @HmCacheEvict(prefix = RedisConstants.CACHE_SHOP_KEY, key = "#shop.id")
     public Result update(Shop shop) {
         Long id = shop.getId();
         if (id == null) {
             return Result.fail("店铺ID不能为空");
         }
-        // 1. 更新数据库
+        // 更新数据库 事务提交后由缓存切面删除缓存 并通知所有节点删除本地缓存
         updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+        // 1.根据类型分页查询店铺id 只查id走索引即可
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.ok(ids);
+        }
+        // 2.批量从缓存中获取店铺信息 一次redis 未命中的一次查询数据库
+        List<Shop> shops = cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                this::listByIds, Shop::getId, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 3.返回数据
+        return Result.ok(shops);
+    }
+
     /**
      * 保存商品信息到redis中
      *
      * @param id            商品id
      * @param expireSeconds 过期时间 s
      */
-    public void saveShop2Redis(Long id, Long expireSeconds) throws InterruptedException {
-        Thread.sleep(200);
-
+    public void saveShop2Redis(Long id, Long expireSeconds) {
         // 1. 查询店铺数据
         Shop shop = getById(id);
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-
-        // 3.写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2.封装逻辑过期时间 写入redis
+        cacheClient.setWhitLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 }
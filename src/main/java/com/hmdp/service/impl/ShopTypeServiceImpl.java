@@ -1,15 +1,13 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.cache.HmCached;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.hmdp.utils.RedisConstants;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -25,28 +23,19 @@ import java.util.List;
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
-    @Autowired
-    private StringRedisTemplate stringRedisTemplate;
-
     @Override
     public Result queryAll() {
-        String key = RedisConstants.CACHE_SHOP_TYPE_KEY;
-        List<ShopType> shopTypeList;
-        // 1.查看缓存中是否存在
-        String shopTypeListJson = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(shopTypeListJson)) {
-            shopTypeList = JSONUtil.toList(shopTypeListJson, ShopType.class);
-            return Result.ok(shopTypeList);
-        }
-
-        // 2.去数据库中查询
-        shopTypeList = query().orderByAsc("sort").list();
-        if (shopTypeList.isEmpty()) {
+        // 通过代理对象调用 经过缓存切面
+        List<ShopType> shopTypeList = ((IShopTypeService) AopContext.currentProxy()).queryTypeList();
+        if (shopTypeList == null || shopTypeList.isEmpty()) {
             return Result.fail("不存在商品类型");
         }
-
-        // 3.放置缓存中
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shopTypeList));
         return Result.ok(shopTypeList);
     }
+
+    @Override
+    @HmCached(prefix = RedisConstants.CACHE_SHOP_TYPE_KEY, ttl = RedisConstants.CACHE_SHOP_TYPE_TTL, l1 = true)
+    public List<ShopType> queryTypeList() {
+        return query().orderByAsc("sort").list();
+    }
 }
@@ -6,6 +6,7 @@ import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.cache.BloomFilterManager;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -40,6 +41,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private BloomFilterManager bloomFilterManager;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
        /*
@@ -146,6 +150,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         // 2.保存用户
         save(user);
+        // 3.写入布隆过滤器
+        bloomFilterManager.add(RedisConstants.CACHE_USER_KEY, user.getId());
 
         return user;
     }
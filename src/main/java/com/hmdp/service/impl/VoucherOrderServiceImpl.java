@@ -2,22 +2,28 @@ package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.dto.ScrollResult;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.seckill.SeckillStock;
+import com.hmdp.seckill.SeckillVoucherRegistry;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.RedisIdWoker;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -27,6 +33,7 @@ import java.time.LocalDateTime;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -37,95 +44,157 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWoker redisIdWoker;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStock seckillStock;
 
     @Resource
-    private RedissonClient redissonClient;
-
+    private SeckillVoucherRegistry seckillVoucherRegistry;
+
+    /**
+     * 秒杀下单 先在内存中判断秒杀时间和是否售罄 再在redis中判断资格 订单消息由 VoucherOrderConsumer 写入数据库
+     *
+     * @param voucherId
+     * @return 订单id
+     */
     @Override
     public Result seckillVoucher(Long voucherId) {
-
-        // 1.查询优惠券信息
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
-
-        // 2. 判断优惠券是否存在
-        if (voucher == null) {
-            return Result.fail("优惠券不存在");
-        }
-        // 3.判断秒杀是否开始
-        if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
-            return Result.fail("秒杀尚未开始");
-        }
-        // 4.判断秒杀是否结束
-        if (voucher.getEndTime().isBefore(LocalDateTime.now())) {
-            return Result.fail("秒杀已经结束");
-        }
-        // 5.判断库存是否充足
-        if (voucher.getStock() < 1) {
-            return Result.fail("库存不足");
-        }
-
         Long userId = UserHolder.getUser().getId();
-
-        // string.intern()  返回串的常量池中，如果池中已经存在该字符串，则返回池中的该字符串的引用，否则将字符串添加到池中并返回字符串的引用
-        // 将同步锁加在 userid 对象上 减少不必要的同步锁
-        // 事物的提交要放在锁内 避免锁释放后事物还没有提交
-        // 事物是通过代理对象才生效
-//        synchronized (userId.toString().intern()) {
-//
-//            // 获取代理对象（事物）
-//            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-//            return proxy.createVoucherOrder(voucherId);
-//        }
-
-        // 获取分布式锁
-//        SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-//        boolean isLock = lock.tryLock(1200);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 三个参数 获取锁最大等待时间（期间会重试） 锁自动释放时间  时间单位
-        boolean isLock = lock.tryLock();
-
-        if (!isLock) {
-            // 获取锁失败
-            return Result.fail("不允许重复下单");
+        // 1.本节点记录的秒杀时间和售罄标记 不满足条件时不访问redis
+        int r = seckillVoucherRegistry.check(voucherId, System.currentTimeMillis());
+        if (r == SeckillStock.OK) {
+            // 2.判断时间 库存 一人一单 有购买资格时扣减库存并发送订单消息
+            long orderId = redisIdWoker.nextId("order");
+            r = seckillStock.admit(voucherId, userId, orderId);
+            if (r == SeckillStock.OK) {
+                return Result.ok(orderId);
+            }
+            if (r == SeckillStock.SOLD_OUT) {
+                seckillVoucherRegistry.markSoldOut(voucherId);
+            }
         }
-
-        try {
-            // 获取代理对象（事物）
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            return proxy.createVoucherOrder(voucherId);
-        } finally {
-            // 手动释放锁
-            lock.unlock();
+        // 3.没有购买资格
+        switch (r) {
+            case SeckillStock.SOLD_OUT:
+                return Result.fail("库存不足");
+            case SeckillStock.DUPLICATE:
+                return Result.fail("不能重复下单");
+            case SeckillStock.NOT_STARTED:
+                return Result.fail("秒杀尚未开始");
+            case SeckillStock.ENDED:
+                return Result.fail("秒杀已经结束");
+            default:
+                return Result.fail("优惠券不存在");
         }
     }
 
+    /**
+     * redis中已经保证一人一单和库存充足 这里的判断只作为兜底
+     * 消息重复投递时 已保存的订单直接返回 由调用方确认消息 库存不足时抛出异常 消息不确认
+     */
+    @Override
     @Transactional
-    public Result createVoucherOrder(Long voucherId) {
+    public void createVoucherOrder(VoucherOrder voucherOrder) {
         // 6.一人一单
-        Long userId = UserHolder.getUser().getId();
+        Long userId = voucherOrder.getUserId();
+        Long voucherId = voucherOrder.getVoucherId();
         int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
         if (count > 0) {
-            return Result.fail("您已经购买过该优惠券");
+            log.warn("用户已经购买过该优惠券 userId:{} voucherId:{}", userId, voucherId);
+            return;
         }
 
         // 7.扣减库存
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock -1")     // set stock = stock -1
-//                .eq("voucher_id", voucherId).eq("stock", voucher.getStock())    // where voucher_id = ? and stock = ?  这种方式过于安全
                 .eq("voucher_id", voucherId).gt("stock", 0) // where voucher_id = ? and stock > 0
                 .update();
         if (!success) {
-            return Result.fail("库存不足");
+            throw new IllegalStateException("库存不足 voucherId:" + voucherId);
         }
         // 8.创建订单
-        long orderId = redisIdWoker.nextId("order");
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setId(orderId);
-        voucherOrder.setUserId(userId);
-        voucherOrder.setVoucherId(voucherId);
         save(voucherOrder);
-        // 9.返回订单id
-        return Result.ok(orderId);
+    }
+
+    /**
+     * 每个优惠券一条 insert 写入订单 按实际写入的行数合并扣减库存
+     * 重复投递或对账补单产生的重复订单由主键和 uk_user_voucher 忽略 不扣减库存
+     * 库存不足时整批回滚 由调用方逐条保存
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 按优惠券id排序 多个节点同时扣减时加锁顺序一致 避免死锁
+        Map<Long, List<VoucherOrder>> groups = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.toList()));
+        groups.forEach((voucherId, orders) -> {
+            // 1.批量创建订单 忽略重复的订单
+            int inserted = getBaseMapper().insertBatch(orders);
+            if (inserted < orders.size()) {
+                log.warn("忽略重复订单 voucherId:{} 数量:{}", voucherId, orders.size() - inserted);
+            }
+            if (inserted == 0) {
+                return;
+            }
+            // 2.扣减实际写入的订单数
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)     // set stock = stock - k
+                    .eq("voucher_id", voucherId).ge("stock", inserted) // where voucher_id = ? and stock >= k
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足 voucherId:" + voucherId);
+            }
+        });
+    }
+
+    /**
+     * 订单id的高32位是创建时间 时间范围对应连续的主键范围 直接在聚簇索引上扫描
+     */
+    @Override
+    public Result queryOrdersByTime(LocalDateTime begin, LocalDateTime end, Long lastId) {
+        if (end == null) {
+            end = LocalDateTime.now();
+        }
+        if (begin == null) {
+            begin = end.minusHours(1);
+        }
+        if (begin.isAfter(end)) {
+            return Result.fail("开始时间不能晚于结束时间");
+        }
+        return Result.ok(scroll(null, begin, end, lastId, SystemConstants.ORDER_PAGE_SIZE));
+    }
+
+    @Override
+    public Result queryMyOrders(Long lastId) {
+        Long userId = UserHolder.getUser().getId();
+        LocalDateTime now = LocalDateTime.now();
+        return Result.ok(scroll(userId, now.minusDays(SystemConstants.ORDER_HISTORY_DAYS), now, lastId,
+                SystemConstants.MAX_PAGE_SIZE));
+    }
+
+    @Override
+    public Result queryDailyCount(LocalDate date) {
+        return Result.ok(redisIdWoker.countOfDay("order", date == null ? LocalDate.now() : date));
+    }
+
+    /**
+     * where id between ? and ? [and user_id = ?] order by id desc limit ?
+     * minTime 为本页最后一个订单id 作为下一页的 lastId
+     */
+    private ScrollResult scroll(Long userId, LocalDateTime begin, LocalDateTime end, Long lastId, int pageSize) {
+        long minId = RedisIdWoker.minIdOf(begin);
+        long maxId = RedisIdWoker.maxIdOf(end);
+        if (lastId != null) {
+            maxId = Math.min(maxId, lastId - 1);
+        }
+        List<VoucherOrder> orders = minId > maxId ? Collections.emptyList() : query()
+                .eq(userId != null, "user_id", userId)
+                .between("id", minId, maxId)
+                .orderByDesc("id")
+                .last("limit " + pageSize)
+                .list();
+        ScrollResult result = new ScrollResult();
+        result.setList(orders);
+        result.setMinTime(orders.isEmpty() ? null : orders.get(orders.size() - 1).getId());
+        result.setOffset(0);
+        return result;
     }
 }
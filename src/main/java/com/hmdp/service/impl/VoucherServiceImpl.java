@@ -1,17 +1,29 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.lang.TypeReference;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.cache.HmCacheEvict;
+import com.hmdp.cache.HmCached;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.seckill.SeckillPreheater;
+import com.hmdp.seckill.SeckillVoucherRegistry;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -24,19 +36,55 @@ import java.util.List;
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    private static final Type VOUCHER_LIST_TYPE = new TypeReference<List<Voucher>>() {
+    }.getType();
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SeckillPreheater seckillPreheater;
+
+    @Resource
+    private SeckillVoucherRegistry seckillVoucherRegistry;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息 通过代理对象调用 经过缓存切面
+        List<Voucher> vouchers = ((IVoucherService) AopContext.currentProxy()).queryVoucherListOfShop(shopId);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    /**
+     * 异步查询不经过缓存切面 参数与 queryVoucherListOfShop 的注解保持一致
+     */
+    @Override
+    public CompletableFuture<Result> queryVoucherOfShopAsync(Long shopId) {
+        return cacheClient.queryWithPassThroughAsync(RedisConstants.CACHE_VOUCHER_SHOP_KEY, shopId, VOUCHER_LIST_TYPE,
+                        id -> {
+                            // 与切面一致 空列表按空值缓存
+                            List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(id);
+                            return vouchers.isEmpty() ? null : vouchers;
+                        }, RedisConstants.CACHE_VOUCHER_SHOP_TTL, TimeUnit.MINUTES)
+                .thenApply(vouchers -> Result.ok(vouchers == null ? Collections.emptyList() : vouchers));
+    }
+
+    /**
+     * 秒杀券的库存随下单变化 缓存有效期很短
+     */
+    @Override
+    @HmCached(prefix = RedisConstants.CACHE_VOUCHER_SHOP_KEY, ttl = RedisConstants.CACHE_VOUCHER_SHOP_TTL)
+    public List<Voucher> queryVoucherListOfShop(Long shopId) {
+        return getBaseMapper().queryVoucherOfShop(shopId);
+    }
+
     @Override
     @Transactional
+    @HmCacheEvict(prefix = RedisConstants.CACHE_VOUCHER_SHOP_KEY, key = "#voucher.shopId")
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
@@ -47,5 +95,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 即将开始的秒杀券立即写入库存和时间到redis 其余在开始前由 SeckillPreheater 预热
+        seckillPreheater.submit(seckillVoucher);
+        // 通知所有节点 下单前在内存中判断秒杀时间
+        seckillVoucherRegistry.register(seckillVoucher);
     }
 }
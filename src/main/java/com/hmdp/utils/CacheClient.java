@@ -1,18 +1,59 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.cache.BloomFilterManager;
+import com.hmdp.cache.CacheCodec;
+import com.hmdp.cache.CacheMetrics;
+import com.hmdp.cache.CacheRebuildScheduler;
+import com.hmdp.cache.CacheStrategy;
+import com.hmdp.cache.HotKeyDetector;
+import com.hmdp.cache.JsonCacheCodec;
+import com.hmdp.dto.HotKeyDTO;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * @className: CacheClient
@@ -24,12 +65,369 @@ import java.util.function.Function;
 @Component
 public class CacheClient {
 
+    /**
+     * 当前节点标识 用于忽略自己发出的失效消息
+     */
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    /**
+     * 缓存的空值 避免缓存穿透
+     */
+    private static final byte[] NULL_VALUE = new byte[0];
+
     private final StringRedisTemplate stringRedisTemplate;
 
-    private final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    private final ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final BloomFilterManager bloomFilterManager;
+
+    /**
+     * 写入使用的编码
+     */
+    private final CacheCodec codec;
+
+    /**
+     * 旧版本写入的json数据 读取时兼容
+     */
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+
+    /**
+     * 按key前缀隔离的有界重建线程池
+     */
+    private final CacheRebuildScheduler rebuildScheduler;
+
+    private final CacheMetrics cacheMetrics;
+
+    /**
+     * 异步查询时 执行数据库查询的线程池 不占用redis的io线程
+     */
+    private final ThreadPoolExecutor dbExecutor = new ThreadPoolExecutor(
+            RedisConstants.CACHE_DB_THREADS, RedisConstants.CACHE_DB_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(RedisConstants.CACHE_DB_QUEUE_SIZE),
+            ThreadUtil.newNamedThreadFactory("cache-db-", true),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * 本地一级缓存 key前缀 -> 缓存
+     */
+    private final Map<String, Cache<String, Object>> localCaches = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点正在进行的加载 同一个key只有一个线程查询数据库 其他线程共享结果
+     */
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 等待其他节点重建完成的通知
+     */
+    private final Map<String, CompletableFuture<Object>> remoteLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点正在重建的逻辑过期key 避免重复争抢redis互斥锁
+     */
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 开启提前刷新的key前缀 -> beta  beta越大越早刷新
+     */
+    private final Map<String, Double> earlyRefreshBetas = new ConcurrentHashMap<>();
+
+    /**
+     * 最近一次读到的数据 等待重建超时后降级返回
+     */
+    private final Cache<String, Object> staleValues = Caffeine.newBuilder()
+            .maximumSize(RedisConstants.CACHE_STALE_SIZE)
+            .expireAfterWrite(RedisConstants.CACHE_STALE_TTL, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * 热点key探测
+     */
+    private final HotKeyDetector hotKeyDetector = new HotKeyDetector(RedisConstants.CACHE_HOT_KEY_SLOTS,
+            RedisConstants.CACHE_HOT_KEY_DEPTH, RedisConstants.CACHE_HOT_KEY_WIDTH, RedisConstants.CACHE_HOT_KEY_TOP_K);
+
+    /**
+     * 已提升的热点key 包括其他节点广播的
+     */
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 热点key的本地副本 存放redis中的原始数据 有效期很短
+     */
+    private final Cache<String, Object> hotReplica = Caffeine.newBuilder()
+            .maximumSize(RedisConstants.CACHE_HOT_KEY_REPLICA_SIZE)
+            .expireAfterWrite(RedisConstants.CACHE_HOT_KEY_REPLICA_TTL, TimeUnit.SECONDS)
+            .build();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer, BloomFilterManager bloomFilterManager,
+                       CacheCodec codec, CacheRebuildScheduler rebuildScheduler, CacheMetrics cacheMetrics) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.reactiveCacheRedisTemplate = reactiveCacheRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.bloomFilterManager = bloomFilterManager;
+        this.codec = codec;
+        this.rebuildScheduler = rebuildScheduler;
+        this.cacheMetrics = cacheMetrics;
+    }
+
+    /**
+     * 订阅缓存失效频道 其他节点更新数据后删除本地缓存
+     */
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            // 自己发出的消息 本地缓存已经处理过
+            if (index < 0 || NODE_ID.equals(body.substring(0, index))) {
+                return;
+            }
+            String key = body.substring(index + 1);
+            evictLocal(key);
+            // 唤醒等待其他节点重建的线程
+            CompletableFuture<Object> signal = remoteLoads.remove(key);
+            if (signal != null) {
+                signal.complete(null);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        // 其他节点发现的热点key 本节点同样提升 流量切换到本节点时不需要重新统计
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            if (index < 0 || NODE_ID.equals(body.substring(0, index))) {
+                return;
+            }
+            promote(body.substring(index + 1), false);
+        }, new ChannelTopic(RedisConstants.CACHE_HOT_KEY_CHANNEL));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        dbExecutor.shutdown();
+    }
+
+    /**
+     * 为指定key前缀开启本地一级缓存 已开启的不重复创建
+     *
+     * @param keyPrefix   key前缀
+     * @param maximumSize 最大条数 超出后按近期最少使用淘汰
+     * @param ttl         本地缓存有效期
+     * @param unit
+     */
+    public void registerLocalCache(String keyPrefix, long maximumSize, long ttl, TimeUnit unit) {
+        localCaches.computeIfAbsent(keyPrefix, k -> Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, unit)
+                .build());
+    }
+
+    /**
+     * 为指定key前缀开启逻辑过期数据的提前刷新
+     * 按上次重建耗时和距离过期的时间 以逐渐增大的概率在过期前触发重建
+     * 判断条件: now - delta * beta * ln(rand) >= expireTime
+     *
+     * @param keyPrefix key前缀
+     * @param beta      提前系数 1为默认值 大于1更早刷新
+     */
+    public void enableEarlyRefresh(String keyPrefix, double beta) {
+        earlyRefreshBetas.put(keyPrefix, beta);
+    }
+
+    /**
+     * 删除缓存 并通知所有节点删除本地缓存
+     *
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        publishInvalidate(key);
+    }
+
+    /**
+     * 批量删除缓存 通过pipeline一次删除并通知所有节点删除本地缓存
+     *
+     * @param keys
+     */
+    public void delete(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        keys.forEach(this::evictLocal);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.del(keys.toArray(new String[0]));
+            keys.forEach(key -> stringConnection.publish(RedisConstants.CACHE_INVALIDATE_CHANNEL, NODE_ID + ":" + key));
+            return null;
+        });
+    }
+
+    /**
+     * 删除本节点的本地缓存
+     *
+     * @param key
+     */
+    public void evictLocal(String key) {
+        hotReplica.invalidate(key);
+        for (Map.Entry<String, Cache<String, Object>> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * 访问次数最多的key及热点副本命中率
+     */
+    public List<HotKeyDTO> getHotKeys() {
+        List<HotKeyDTO> result = new ArrayList<>();
+        hotKeyDetector.getTopKeys().forEach((key, count) -> {
+            HotKeyDTO dto = new HotKeyDTO();
+            dto.setKey(key);
+            dto.setCount(count);
+            HotKey hotKey = hotKeys.get(key);
+            dto.setHot(hotKey != null);
+            if (hotKey != null) {
+                long hits = hotKey.hits.sum();
+                long misses = hotKey.misses.sum();
+                dto.setHits(hits);
+                dto.setMisses(misses);
+                dto.setHitRatio(hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+            }
+            result.add(dto);
+        });
+        return result;
+    }
+
+    /**
+     * 滑动热点统计窗口 访问量降到阈值一半以下且提升已超过一个窗口的key降级
+     */
+    @Scheduled(fixedRate = RedisConstants.CACHE_HOT_KEY_SLOT_MILLIS)
+    public void rotateHotKeys() {
+        hotKeyDetector.rotate();
+        long minLiveMillis = RedisConstants.CACHE_HOT_KEY_SLOT_MILLIS * RedisConstants.CACHE_HOT_KEY_SLOTS;
+        long now = System.currentTimeMillis();
+        hotKeys.entrySet().removeIf(entry -> {
+            String key = entry.getKey();
+            if (now - entry.getValue().promotedAt < minLiveMillis
+                    || hotKeyDetector.estimate(key) * 2 >= RedisConstants.CACHE_HOT_KEY_THRESHOLD) {
+                return false;
+            }
+            hotReplica.invalidate(key);
+            log.info("热点key降级 key:{}", key);
+            return true;
+        });
+    }
+
+    /**
+     * 记录访问 热点key优先读取本地副本 未命中时查询redis并写入副本
+     *
+     * @param key
+     * @param loader 查询redis
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private <V> V readThroughHotReplica(String key, Supplier<V> loader) {
+        V value = (V) getHotReplica(key);
+        if (value == null) {
+            value = loader.get();
+            putHotReplica(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 记录访问 访问次数超过阈值时提升为热点key
+     *
+     * @param key
+     * @return 热点key的本地副本 非热点key或副本未命中时为null
+     */
+    private Object getHotReplica(String key) {
+        // 登录token不参与热点统计 避免通过热点key接口泄露 也不使用本地副本
+        if (key.startsWith(RedisConstants.LOGIN_USER_KEY)) {
+            return null;
+        }
+        long count = hotKeyDetector.record(key);
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) {
+            if (count < RedisConstants.CACHE_HOT_KEY_THRESHOLD) {
+                return null;
+            }
+            hotKey = promote(key, true);
+        }
+        Object value = hotReplica.getIfPresent(key);
+        if (value != null) {
+            hotKey.hits.increment();
+        } else {
+            hotKey.misses.increment();
+        }
+        return value;
+    }
+
+    private void putHotReplica(String key, Object value) {
+        if (value != null && hotKeys.containsKey(key)) {
+            hotReplica.put(key, value);
+        }
+    }
+
+    /**
+     * 提升为热点key
+     *
+     * @param key
+     * @param broadcast 是否通知其他节点
+     * @return
+     */
+    private HotKey promote(String key, boolean broadcast) {
+        HotKey hotKey = new HotKey();
+        HotKey existing = hotKeys.putIfAbsent(key, hotKey);
+        if (existing != null) {
+            return existing;
+        }
+        log.info("热点key提升 key:{} 来源:{}", key, broadcast ? "本节点" : "其他节点");
+        if (broadcast) {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_HOT_KEY_CHANNEL, NODE_ID + ":" + key);
+        }
+        return hotKey;
+    }
+
+    /**
+     * 查询redis中的原始数据 热点key优先读取本地副本
+     */
+    private byte[] getBytes(String keyPrefix, String key) {
+        return readThroughHotReplica(key,
+                () -> cacheMetrics.redisGet(keyPrefix).record(() -> cacheRedisTemplate.opsForValue().get(key)));
+    }
+
+    /**
+     * 异步查询redis中的原始数据 热点key优先读取本地副本
+     */
+    private CompletableFuture<byte[]> getBytesAsync(String keyPrefix, String key) {
+        byte[] bytes = (byte[]) getHotReplica(key);
+        if (bytes != null) {
+            return CompletableFuture.completedFuture(bytes);
+        }
+        long begin = System.nanoTime();
+        return reactiveCacheRedisTemplate.opsForValue().get(key).toFuture().thenApply(value -> {
+            cacheMetrics.redisGet(keyPrefix).record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            putHotReplica(key, value);
+            return value;
+        });
+    }
+
+    /**
+     * 广播缓存失效消息
+     *
+     * @param key
+     */
+    private void publishInvalidate(String key) {
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, NODE_ID + ":" + key);
     }
 
     /**
@@ -41,7 +439,7 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        cacheRedisTemplate.opsForValue().set(key, codec.encode(value, 0), jitterMillis(time, unit), TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -53,13 +451,13 @@ public class CacheClient {
      * @param unit
      */
     public void setWhitLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        setWhitLogicalExpire(key, value, time, unit, 0);
+    }
 
-        // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    private void setWhitLogicalExpire(String key, Object value, Long time, TimeUnit unit, int deltaMillis) {
+        // 设置逻辑过期时间 写入redis
+        long expireMillis = System.currentTimeMillis() + jitterMillis(time, unit);
+        cacheRedisTemplate.opsForValue().set(key, codec.encode(value, expireMillis, deltaMillis));
     }
 
     /**
@@ -68,30 +466,56 @@ public class CacheClient {
      * @param id
      * @return
      */
-    public <R, T> R queryWithPassThrough(String keyPrefix, T id, Class<R> type,
+    @SuppressWarnings("unchecked")
+    public <R, T> R queryWithPassThrough(String keyPrefix, T id, Type type,
                                          Function<T, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断一定不存在的 直接返回
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        // 1.从redis信息
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3.返回 直接返回
-            return JSONUtil.toBean(json, type);
+        // 0.先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            Object local = localCache.getIfPresent(key);
+            if (local != null) {
+                cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.LOCAL);
+                return (R) local;
+            }
         }
+        // 1.从redis信息
+        byte[] bytes = getBytes(keyPrefix, key);
         //判断命中是否是空值
-        if (json != null) {
+        if (bytes != null && bytes.length == 0) {
+            cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.NULL);
             return null;
         }
+        // 2.判断是否存在 解码失败说明实体结构已变更 重新查询数据库
+        R r = bytes == null ? null : decode(keyPrefix, bytes, type);
+        if (r != null) {
+            // 3.返回 直接返回
+            cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.HIT);
+            if (localCache != null) {
+                localCache.put(key, r);
+            }
+            return r;
+        }
         // 4.不存在 根据id查询数据库
-        R r = dbFallback.apply(id);
+        cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.MISS);
+        r = cacheMetrics.load(keyPrefix, CacheStrategy.PASS_THROUGH).record(() -> dbFallback.apply(id));
         // 5.不存在 返回错误
         if (r == null) {
+            bloomFilterManager.recordFalsePositive(keyPrefix);
             //将空值写入redis 避免缓存穿透
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            cacheRedisTemplate.opsForValue().set(key, NULL_VALUE, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            cacheMetrics.nullWrite(keyPrefix, 1);
             return null;
         }
         // 6.存在 写入redis中
         this.set(key, r, time, unit);
+        if (localCache != null) {
+            localCache.put(key, r);
+        }
         // 7.返回
         return r;
     }
@@ -103,68 +527,827 @@ public class CacheClient {
      * @param id
      * @return
      */
-    public <R, T> R queryWithLogicalExpire(String keyPrefix, T id, Class<R> type,
+    @SuppressWarnings("unchecked")
+    public <R, T> R queryWithLogicalExpire(String keyPrefix, T id, Type type,
                                            Function<T, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断一定不存在的 直接返回
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查本地缓存 本地缓存中存放的是已反序列化的数据及其逻辑过期时间
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            RedisData local = (RedisData) localCache.getIfPresent(key);
+            if (local != null && local.getExpireTime().isAfter(LocalDateTime.now())) {
+                cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, CacheMetrics.Outcome.LOCAL);
+                return (R) local.getData();
+            }
+        }
         // 1.从redis查询信息
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(keyPrefix, key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 不存在 直接返回
+            cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, CacheMetrics.Outcome.MISS);
+            return null;
+        }
+
+        // 3.存在 先读取头部的逻辑过期时间 再解码数据
+        CacheCodec entryCodec = codecOf(bytes);
+        long expireMillis = entryCodec.readExpireMillis(bytes);
+        R r = decode(keyPrefix, entryCodec, bytes, type);
+        // 4. 判断 是否过期  解码失败说明实体结构已变更 按过期处理
+        long now = System.currentTimeMillis();
+        cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, outcomeOf(r, expireMillis, now));
+        if (r != null && expireMillis > now) {
+            // 4.1未过期  写入本地缓存后直接返回店铺信息
+            if (localCache != null) {
+                localCache.put(key, toRedisData(r, expireMillis));
+            }
+            // 未到提前刷新的时机 直接返回
+            if (!shouldRefreshEarly(keyPrefix, entryCodec.readDeltaMillis(bytes), expireMillis, now)) {
+                return r;
+            }
+        }
+
+        // 5. 过期或提前刷新  需要缓存重建
+        R fresh = rebuildLogicalExpire(keyPrefix, key, id, expireMillis, type, dbFallback, time, unit);
+        // 7.返回 已被其他线程重建的数据 或过期/即将过期的商品信息
+        return fresh != null ? fresh : r;
+    }
+
+    /**
+     * 获取互斥锁后提交逻辑过期数据的重建
+     *
+     * @param expireMillis 读取到的逻辑过期时间 用于判断是否已被其他线程重建
+     * @return 已被其他线程重建的数据 没有则返回null
+     */
+    private <R, T> R rebuildLogicalExpire(String keyPrefix, String key, T id, long expireMillis, Type type,
+                                          Function<T, R> dbFallback, Long time, TimeUnit unit) {
+        // 本节点已经在重建的直接返回
+        if (!rebuildingKeys.add(key)) {
+            return null;
+        }
+        String lockKey = lockKeyOf(key);
+        boolean submitted = false;
+        try {
+            // 5.1成功获取互斥锁
+            if (tryLock(lockKey)) {
+                // 5.2 成功，再次检测redis中缓存是否已被其他线程重建 只需读取头部
+                byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+                if (bytes != null && bytes.length > 0) {
+                    CacheCodec entryCodec = codecOf(bytes);
+                    // 4. 判断 是否已经重建且未过期
+                    long latestExpireMillis = entryCodec.readExpireMillis(bytes);
+                    if (latestExpireMillis > expireMillis && latestExpireMillis > System.currentTimeMillis()) {
+                        R fresh = decode(keyPrefix, entryCodec, bytes, type);
+                        if (fresh != null) {
+                            // 4.1未过期  直接返回店铺信息
+                            unlock(lockKey);
+                            return fresh;
+                        }
+                    }
+                }
+                // 5.4  过期 提交到重建线程池 队列已满或数据库过慢时放弃重建 继续返回旧数据
+                submitted = rebuildScheduler.submit(keyPrefix, key, () -> {
+                    // 重建缓存
+                    try {
+                        //查询数据库 记录重建耗时
+                        long begin = System.currentTimeMillis();
+                        R r1 = cacheMetrics.load(keyPrefix, CacheStrategy.LOGICAL_EXPIRE).record(() -> dbFallback.apply(id));
+                        int deltaMillis = (int) (System.currentTimeMillis() - begin);
+                        // 写入redis 并通知所有节点删除本地缓存  数据已删除的直接删除缓存
+                        if (r1 == null) {
+                            cacheRedisTemplate.delete(key);
+                        } else {
+                            this.setWhitLogicalExpire(key, r1, time, unit, deltaMillis);
+                        }
+                        evictLocal(key);
+                        publishInvalidate(key);
+                    } finally {
+                        // 释放锁
+                        unlock(lockKey);
+                        rebuildingKeys.remove(key);
+                    }
+                });
+                if (!submitted) {
+                    unlock(lockKey);
+                }
+            } else {
+                cacheMetrics.lockFailure(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, 1);
+            }
+        } finally {
+            if (!submitted) {
+                rebuildingKeys.remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 基于互斥锁解决缓存击穿问题
+     * 本节点内同一个key的并发未命中共享一次加载 集群内只有获取到redis互斥锁的节点查询数据库
+     * 其他节点等待重建完成的广播后重新读取redis 不再固定休眠重试
+     * 等待超时后降级返回最近一次读到的旧数据
+     *
+     * @param id
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <R, T> R queryWithMutex(String keyPrefix, T id, Type type,
+                                   Function<T, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断一定不存在的 直接返回
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        // 0.先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            Object local = localCache.getIfPresent(key);
+            if (local != null) {
+                cacheMetrics.record(keyPrefix, CacheStrategy.MUTEX, CacheMetrics.Outcome.LOCAL);
+                return (R) local;
+            }
+        }
+        // 1.从redis查询信息
+        byte[] bytes = getBytes(keyPrefix, key);
+        //判断命中是否是空值
+        if (bytes != null && bytes.length == 0) {
+            cacheMetrics.record(keyPrefix, CacheStrategy.MUTEX, CacheMetrics.Outcome.NULL);
             return null;
         }
+        // 2.判断是否存在
+        R cached = bytes == null ? null : decode(keyPrefix, bytes, type);
+        cacheMetrics.record(keyPrefix, CacheStrategy.MUTEX, cached != null ? CacheMetrics.Outcome.HIT : CacheMetrics.Outcome.MISS);
+        if (cached != null) {
+            staleValues.put(key, cached);
+            if (localCache != null) {
+                localCache.put(key, cached);
+            }
+            return cached;
+        }
+        // 3.未命中 本节点已有线程在加载的 等待其结果
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, call);
+        if (inFlight != null) {
+            return awaitLoad(key, inFlight);
+        }
+        // 4.由当前线程负责加载
+        try {
+            R r = loadWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            if (r != null && localCache != null) {
+                localCache.put(key, r);
+            }
+            call.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, call);
+        }
+    }
+
+    /**
+     * 等待本节点其他线程的加载结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R awaitLoad(String key, CompletableFuture<Object> call) {
+        try {
+            return (R) call.get(RedisConstants.CACHE_LOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("等待缓存重建超时 返回旧数据 key:{}", key);
+            return (R) staleValues.getIfPresent(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return (R) staleValues.getIfPresent(key);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-        // 3.存在 将json 反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 4. 判断 是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.1未过期  直接返回店铺信息
+    /**
+     * 获取redis互斥锁后重建缓存 获取失败则等待持有锁的节点重建完成
+     */
+    private <R, T> R loadWithMutex(String keyPrefix, T id, Type type,
+                                   Function<T, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = lockKeyOf(key);
+        long deadline = System.currentTimeMillis() + RedisConstants.CACHE_LOAD_WAIT_MILLIS;
+        boolean locked = tryLock(lockKey);
+        if (!locked) {
+            cacheMetrics.lockFailure(keyPrefix, CacheStrategy.MUTEX, 1);
+        }
+        while (!locked) {
+            // 先登记等待 再检查redis 避免错过重建完成的通知
+            CompletableFuture<Object> signal = remoteLoads.computeIfAbsent(key, k -> new CompletableFuture<>());
+            try {
+                byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+                if (bytes != null) {
+                    return bytes.length == 0 ? null : decode(keyPrefix, bytes, type);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return fallback(key, id, dbFallback);
+                }
+                signal.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // 超时后回到循环 由剩余时间决定是否降级
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return fallback(key, id, dbFallback);
+            } finally {
+                remoteLoads.remove(key, signal);
+            }
+            locked = tryLock(lockKey);
+        }
+        try {
+            // 获取锁成功 再次检测redis中缓存是否存在
+            byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+            if (bytes != null && bytes.length == 0) {
+                return null;
+            }
+            R cached = bytes == null ? null : decode(keyPrefix, bytes, type);
+            if (cached != null) {
+                return cached;
+            }
+            // 根据id查询数据库
+            R r = cacheMetrics.load(keyPrefix, CacheStrategy.MUTEX).record(() -> dbFallback.apply(id));
+            if (r == null) {
+                bloomFilterManager.recordFalsePositive(keyPrefix);
+                //将空值写入redis 避免缓存穿透
+                cacheRedisTemplate.opsForValue().set(key, NULL_VALUE, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                cacheMetrics.nullWrite(keyPrefix, 1);
+            } else {
+                this.set(key, r, time, unit);
+                staleValues.put(key, r);
+            }
+            // 通知其他节点重建完成
+            publishInvalidate(key);
             return r;
+        } finally {
+            // 释放互斥锁
+            unlock(lockKey);
+        }
+    }
+
+    /**
+     * 等待超时的降级 有旧数据返回旧数据 没有则直接查询数据库
+     */
+    @SuppressWarnings("unchecked")
+    private <R, T> R fallback(String key, T id, Function<T, R> dbFallback) {
+        Object stale = staleValues.getIfPresent(key);
+        if (stale != null) {
+            log.warn("等待缓存重建超时 返回旧数据 key:{}", key);
+            return (R) stale;
         }
+        return dbFallback.apply(id);
+    }
 
-        // 5. 过期  需要缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        // 5.1成功获取互斥锁
-        if (tryLock(lockKey)) {
-            // 5.2 成功，再次检测redis中缓存是否过期
-            json = stringRedisTemplate.opsForValue().get(key);
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-            expireTime = redisData.getExpireTime();
-            // 4. 判断 是否过期
-            if (expireTime.isAfter(LocalDateTime.now())) {
-                // 4.1未过期  直接返回店铺信息
-                return r;
+    /**
+     * 异步查询redis 不阻塞调用线程
+     *
+     * @param keyPrefix key前缀
+     * @param id
+     * @param type      数据类型
+     * @return 不存在或为空值时为null
+     */
+    public <R> CompletableFuture<R> getAsync(String keyPrefix, Object id, Type type) {
+        String key = keyPrefix + id;
+        return getBytesAsync(keyPrefix, key)
+                .thenApply(bytes -> bytes == null || bytes.length == 0 ? null : decode(keyPrefix, bytes, type));
+    }
+
+    /**
+     * 异步解决缓存穿透
+     * redis使用lettuce异步命令 未命中时数据库查询在独立线程池中执行 请求线程不再阻塞等待io
+     *
+     * @param id
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <R, T> CompletableFuture<R> queryWithPassThroughAsync(String keyPrefix, T id, Type type,
+                                                                 Function<T, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断一定不存在的 直接返回
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        // 0.先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            Object local = localCache.getIfPresent(key);
+            if (local != null) {
+                cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.LOCAL);
+                return CompletableFuture.completedFuture((R) local);
             }
-            // 5.4  过期 开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                // 重建缓存
-                try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    // 写入redis
-                    this.setWhitLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
+        }
+        // 1.异步查询redis
+        return getBytesAsync(keyPrefix, key).thenCompose(bytes -> {
+            //判断命中是否是空值
+            if (bytes != null && bytes.length == 0) {
+                cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.NULL);
+                return CompletableFuture.<R>completedFuture(null);
+            }
+            // 2.命中 直接返回
+            R r = bytes == null ? null : decode(keyPrefix, bytes, type);
+            cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, r != null ? CacheMetrics.Outcome.HIT : CacheMetrics.Outcome.MISS);
+            if (r != null) {
+                staleValues.put(key, r);
+                if (localCache != null) {
+                    localCache.put(key, r);
                 }
+                return CompletableFuture.completedFuture(r);
+            }
+            // 3.未命中 在数据库线程池中查询 写回redis不等待结果
+            Timer loadTimer = cacheMetrics.load(keyPrefix, CacheStrategy.PASS_THROUGH);
+            CompletableFuture<R> load;
+            try {
+                load = CompletableFuture.supplyAsync(() -> loadTimer.record(() -> dbFallback.apply(id)), dbExecutor);
+            } catch (RejectedExecutionException e) {
+                return rejectedLoad(keyPrefix, key, e);
+            }
+            return load.thenApply(r1 -> {
+                if (r1 == null) {
+                    bloomFilterManager.recordFalsePositive(keyPrefix);
+                    //将空值写入redis 避免缓存穿透
+                    setAsync(key, NULL_VALUE, Duration.ofMinutes(RedisConstants.CACHE_NULL_TTL));
+                    cacheMetrics.nullWrite(keyPrefix, 1);
+                    return null;
+                }
+                setAsync(key, codec.encode(r1, 0), Duration.ofMillis(jitterMillis(time, unit)));
+                staleValues.put(key, r1);
+                if (localCache != null) {
+                    localCache.put(key, r1);
+                }
+                return r1;
             });
+        });
+    }
 
+    /**
+     * 异步 基于逻辑过期解决缓存击穿问题
+     * 过期时获取锁和提交重建交给数据库线程池 当前请求直接返回旧数据
+     *
+     * @param id
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <R, T> CompletableFuture<R> queryWithLogicalExpireAsync(String keyPrefix, T id, Type type,
+                                                                   Function<T, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断一定不存在的 直接返回
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
         }
-        // 7.返回 过期商品信息
-        return r;
+        String key = keyPrefix + id;
+        // 0.先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            RedisData local = (RedisData) localCache.getIfPresent(key);
+            if (local != null && local.getExpireTime().isAfter(LocalDateTime.now())) {
+                cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, CacheMetrics.Outcome.LOCAL);
+                return CompletableFuture.completedFuture((R) local.getData());
+            }
+        }
+        // 1.异步查询redis
+        return getBytesAsync(keyPrefix, key).thenApply(bytes -> {
+            // 2.不存在 直接返回
+            if (bytes == null || bytes.length == 0) {
+                cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, CacheMetrics.Outcome.MISS);
+                return null;
+            }
+            // 3.存在 先读取头部的逻辑过期时间 再解码数据
+            CacheCodec entryCodec = codecOf(bytes);
+            long expireMillis = entryCodec.readExpireMillis(bytes);
+            R r = decode(keyPrefix, entryCodec, bytes, type);
+            long now = System.currentTimeMillis();
+            cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, outcomeOf(r, expireMillis, now));
+            if (r != null && expireMillis > now) {
+                if (localCache != null) {
+                    localCache.put(key, toRedisData(r, expireMillis));
+                }
+                if (!shouldRefreshEarly(keyPrefix, entryCodec.readDeltaMillis(bytes), expireMillis, now)) {
+                    return r;
+                }
+            }
+            // 4.过期或提前刷新 获取锁会阻塞 交给数据库线程池
+            try {
+                dbExecutor.execute(() -> rebuildLogicalExpire(keyPrefix, key, id, expireMillis, type, dbFallback, time, unit));
+            } catch (RejectedExecutionException e) {
+                cacheMetrics.dbRejected(keyPrefix, CacheStrategy.LOGICAL_EXPIRE);
+                log.warn("数据库线程池已满 放弃本次缓存重建 key:{}", key);
+            }
+            return r;
+        });
+    }
+
+    /**
+     * 数据库线程池已满 有旧数据返回旧数据 没有则以拒绝异常结束 不再排队等待
+     */
+    @SuppressWarnings("unchecked")
+    private <R> CompletableFuture<R> rejectedLoad(String keyPrefix, String key, RejectedExecutionException e) {
+        cacheMetrics.dbRejected(keyPrefix, CacheStrategy.PASS_THROUGH);
+        Object stale = staleValues.getIfPresent(key);
+        if (stale != null) {
+            log.warn("数据库线程池已满 返回旧数据 key:{}", key);
+            return CompletableFuture.completedFuture((R) stale);
+        }
+        log.warn("数据库线程池已满 放弃查询 key:{}", key);
+        CompletableFuture<R> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(e);
+        return rejected;
+    }
+
+    private void setAsync(String key, byte[] value, Duration timeout) {
+        reactiveCacheRedisTemplate.opsForValue().set(key, value, timeout)
+                .subscribe(null, e -> log.warn("异步写入缓存失败 key:{}", key, e));
+    }
+
+    /**
+     * 批量查询 解决缓存穿透
+     * 一次MGET读取redis 未命中的数据一次批量查询数据库 再通过pipeline批量写回
+     *
+     * @param keyPrefix  key前缀
+     * @param ids        id集合
+     * @param type       数据类型
+     * @param dbFallback 根据id集合批量查询数据库
+     * @param idGetter   从数据中获取id
+     * @return 按ids顺序排列的数据 不存在的数据不返回
+     */
+    public <R, T> List<R> queryBatchWithPassThrough(String keyPrefix, Collection<T> ids, Class<R> type,
+                                                    Function<Collection<T>, List<R>> dbFallback, Function<R, T> idGetter,
+                                                    Long time, TimeUnit unit) {
+        Map<T, R> result = new HashMap<>(ids.size());
+        // 0.先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        List<T> redisIds = new ArrayList<>(ids.size());
+        for (T id : new LinkedHashSet<>(ids)) {
+            if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+                continue;
+            }
+            Object local = localCache == null ? null : localCache.getIfPresent(keyPrefix + id);
+            if (local != null) {
+                result.put(id, type.cast(local));
+            } else {
+                redisIds.add(id);
+            }
+        }
+        cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.LOCAL, result.size());
+        if (redisIds.isEmpty()) {
+            return sortByIds(ids, result);
+        }
+        // 1.MGET 一次查询redis
+        List<byte[]> values = multiGet(keyPrefix, redisIds);
+        List<T> missIds = new ArrayList<>();
+        int nullCount = 0;
+        for (int i = 0; i < redisIds.size(); i++) {
+            T id = redisIds.get(i);
+            byte[] bytes = values.get(i);
+            // 空数组是缓存的空值 不需要查询数据库
+            if (bytes != null && bytes.length == 0) {
+                nullCount++;
+                continue;
+            }
+            R r = bytes == null ? null : decode(keyPrefix, bytes, type);
+            if (r != null) {
+                result.put(id, r);
+                if (localCache != null) {
+                    localCache.put(keyPrefix + id, r);
+                }
+            } else {
+                missIds.add(id);
+            }
+        }
+        cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.NULL, nullCount);
+        cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.HIT,
+                redisIds.size() - nullCount - missIds.size());
+        cacheMetrics.record(keyPrefix, CacheStrategy.PASS_THROUGH, CacheMetrics.Outcome.MISS, missIds.size());
+        if (missIds.isEmpty()) {
+            return sortByIds(ids, result);
+        }
+        // 2.一次查询数据库
+        Map<byte[], byte[]> loaded = new HashMap<>(missIds.size());
+        List<R> list = cacheMetrics.load(keyPrefix, CacheStrategy.PASS_THROUGH).record(() -> dbFallback.apply(missIds));
+        for (R r : list) {
+            T id = idGetter.apply(r);
+            result.put(id, r);
+            loaded.put(rawKey(keyPrefix + id), codec.encode(r, 0));
+        }
+        // 3.数据库中不存在的写入空值 避免缓存穿透
+        List<byte[]> nullKeys = new ArrayList<>();
+        for (T id : missIds) {
+            if (!result.containsKey(id)) {
+                bloomFilterManager.recordFalsePositive(keyPrefix);
+                nullKeys.add(rawKey(keyPrefix + id));
+            }
+        }
+        cacheMetrics.nullWrite(keyPrefix, nullKeys.size());
+        // 4.pipeline 一次写回redis
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            loaded.forEach((key, value) -> connection.set(key, value, Expiration.milliseconds(jitterMillis(time, unit)),
+                    RedisStringCommands.SetOption.upsert()));
+            for (byte[] nullKey : nullKeys) {
+                connection.set(nullKey, NULL_VALUE, nullExpiration, RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        if (localCache != null) {
+            missIds.stream().filter(result::containsKey).forEach(id -> localCache.put(keyPrefix + id, result.get(id)));
+        }
+        return sortByIds(ids, result);
+    }
+
+    /**
+     * 批量查询 基于逻辑过期解决缓存击穿问题
+     * 与单个查询不同 未预热的数据会直接查询数据库并写入缓存 保证列表页数据完整
+     * 过期的数据统一加锁后 在一个独立线程中批量重建
+     *
+     * @param keyPrefix  key前缀
+     * @param ids        id集合
+     * @param type       数据类型
+     * @param dbFallback 根据id集合批量查询数据库
+     * @param idGetter   从数据中获取id
+     * @return 按ids顺序排列的数据 不存在的数据不返回
+     */
+    public <R, T> List<R> queryBatchWithLogicalExpire(String keyPrefix, Collection<T> ids, Class<R> type,
+                                                      Function<Collection<T>, List<R>> dbFallback, Function<R, T> idGetter,
+                                                      Long time, TimeUnit unit) {
+        Map<T, R> result = new HashMap<>(ids.size());
+        LocalDateTime now = LocalDateTime.now();
+        long nowMillis = System.currentTimeMillis();
+        // 0.先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        List<T> redisIds = new ArrayList<>(ids.size());
+        for (T id : new LinkedHashSet<>(ids)) {
+            if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+                continue;
+            }
+            RedisData local = localCache == null ? null : (RedisData) localCache.getIfPresent(keyPrefix + id);
+            if (local != null && local.getExpireTime().isAfter(now)) {
+                result.put(id, type.cast(local.getData()));
+            } else {
+                redisIds.add(id);
+            }
+        }
+        cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, CacheMetrics.Outcome.LOCAL, result.size());
+        if (redisIds.isEmpty()) {
+            return sortByIds(ids, result);
+        }
+        // 1.MGET 一次查询redis
+        List<byte[]> values = multiGet(keyPrefix, redisIds);
+        List<T> missIds = new ArrayList<>();
+        List<T> expiredIds = new ArrayList<>();
+        for (int i = 0; i < redisIds.size(); i++) {
+            T id = redisIds.get(i);
+            byte[] bytes = values.get(i);
+            if (bytes == null || bytes.length == 0) {
+                missIds.add(id);
+                continue;
+            }
+            CacheCodec entryCodec = codecOf(bytes);
+            long expireMillis = entryCodec.readExpireMillis(bytes);
+            R r = decode(keyPrefix, entryCodec, bytes, type);
+            if (r == null) {
+                // 实体结构已变更 与未预热的数据一起重新加载
+                missIds.add(id);
+                continue;
+            }
+            result.put(id, r);
+            cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, outcomeOf(r, expireMillis, nowMillis));
+            if (expireMillis > nowMillis) {
+                if (localCache != null) {
+                    localCache.put(keyPrefix + id, toRedisData(r, expireMillis));
+                }
+                if (shouldRefreshEarly(keyPrefix, entryCodec.readDeltaMillis(bytes), expireMillis, nowMillis)) {
+                    expiredIds.add(id);
+                }
+            } else {
+                // 过期 先返回旧数据
+                expiredIds.add(id);
+            }
+        }
+        // 2.未预热的数据 一次查询数据库并批量写入
+        cacheMetrics.record(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, CacheMetrics.Outcome.MISS, missIds.size());
+        if (!missIds.isEmpty()) {
+            List<R> list = cacheMetrics.load(keyPrefix, CacheStrategy.LOGICAL_EXPIRE).record(() -> dbFallback.apply(missIds));
+            setBatchWithLogicalExpire(keyPrefix, list, idGetter, time, unit);
+            list.forEach(r -> result.put(idGetter.apply(r), r));
+        }
+        // 3.过期或需要提前刷新的数据 跳过本节点已在重建的 其余批量获取互斥锁 获取成功的统一重建
+        expiredIds.removeIf(id -> !rebuildingKeys.add(keyPrefix + id));
+        if (!expiredIds.isEmpty()) {
+            List<T> lockedIds = tryLockBatch(keyPrefix, expiredIds);
+            cacheMetrics.lockFailure(keyPrefix, CacheStrategy.LOGICAL_EXPIRE, expiredIds.size() - lockedIds.size());
+            expiredIds.stream().filter(id -> !lockedIds.contains(id)).forEach(id -> rebuildingKeys.remove(keyPrefix + id));
+            if (!lockedIds.isEmpty()) {
+                Runnable release = () -> {
+                    List<String> lockKeys = new ArrayList<>(lockedIds.size());
+                    lockedIds.forEach(id -> lockKeys.add(lockKeyOf(keyPrefix + id)));
+                    stringRedisTemplate.delete(lockKeys);
+                    lockedIds.forEach(id -> rebuildingKeys.remove(keyPrefix + id));
+                };
+                boolean submitted = rebuildScheduler.submit(keyPrefix, keyPrefix + lockedIds, () -> {
+                    try {
+                        long begin = System.currentTimeMillis();
+                        List<R> list = cacheMetrics.load(keyPrefix, CacheStrategy.LOGICAL_EXPIRE)
+                                .record(() -> dbFallback.apply(lockedIds));
+                        int deltaMillis = (int) (System.currentTimeMillis() - begin);
+                        setBatchWithLogicalExpire(keyPrefix, list, idGetter, time, unit, deltaMillis);
+                    } finally {
+                        release.run();
+                    }
+                });
+                if (!submitted) {
+                    release.run();
+                }
+            }
+        }
+        return sortByIds(ids, result);
+    }
+
+    /**
+     * 通过pipeline 批量写入逻辑过期数据 并通知所有节点删除本地缓存
+     *
+     * @param keyPrefix
+     * @param values
+     * @param idGetter
+     * @param time
+     * @param unit
+     */
+    public <R, T> void setBatchWithLogicalExpire(String keyPrefix, Collection<R> values, Function<R, T> idGetter,
+                                                 Long time, TimeUnit unit) {
+        setBatchWithLogicalExpire(keyPrefix, values, idGetter, time, unit, 0);
+    }
+
+    /**
+     * 启动预热时批量写入 数据直接读自数据库 不广播失效消息 避免清空其他节点的本地缓存
+     */
+    public <R, T> void warmBatchWithLogicalExpire(String keyPrefix, Collection<R> values, Function<R, T> idGetter,
+                                                  Long time, TimeUnit unit) {
+        writeBatchWithLogicalExpire(keyPrefix, values, idGetter, time, unit, 0, false);
+    }
+
+    private <R, T> void setBatchWithLogicalExpire(String keyPrefix, Collection<R> values, Function<R, T> idGetter,
+                                                  Long time, TimeUnit unit, int deltaMillis) {
+        writeBatchWithLogicalExpire(keyPrefix, values, idGetter, time, unit, deltaMillis, true);
+    }
+
+    private <R, T> void writeBatchWithLogicalExpire(String keyPrefix, Collection<R> values, Function<R, T> idGetter,
+                                                    Long time, TimeUnit unit, int deltaMillis, boolean invalidate) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Map<String, byte[]> encoded = new HashMap<>(values.size());
+        for (R value : values) {
+            // 每条数据的过期时间加入随机偏移 避免同一批数据同时过期
+            long expireMillis = now + jitterMillis(time, unit);
+            encoded.put(keyPrefix + idGetter.apply(value), codec.encode(value, expireMillis, deltaMillis));
+        }
+        byte[] channel = rawKey(RedisConstants.CACHE_INVALIDATE_CHANNEL);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, value) -> {
+                connection.set(rawKey(key), value);
+                if (invalidate) {
+                    connection.publish(channel, rawKey(NODE_ID + ":" + key));
+                }
+            });
+            return null;
+        });
+        encoded.keySet().forEach(this::evictLocal);
+    }
+
+    private <T> List<byte[]> multiGet(String keyPrefix, List<T> ids) {
+        List<String> keys = new ArrayList<>(ids.size());
+        ids.forEach(id -> keys.add(keyPrefix + id));
+        return cacheMetrics.redisMultiGet(keyPrefix).record(() -> cacheRedisTemplate.opsForValue().multiGet(keys));
+    }
+
+    private <R, T> List<R> sortByIds(Collection<T> ids, Map<T, R> result) {
+        List<R> list = new ArrayList<>(result.size());
+        for (T id : new LinkedHashSet<>(ids)) {
+            R r = result.get(id);
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 当前编码写入的数据由当前编码解码 其余按旧版本的json解码
+     */
+    private CacheCodec codecOf(byte[] bytes) {
+        return codec.supports(bytes) ? codec : jsonCodec;
+    }
+
+    private <R> R decode(String keyPrefix, byte[] bytes, Type type) {
+        return decode(keyPrefix, codecOf(bytes), bytes, type);
+    }
+
+    private <R> R decode(String keyPrefix, CacheCodec entryCodec, byte[] bytes, Type type) {
+        return cacheMetrics.decode(keyPrefix).record(() -> entryCodec.decode(bytes, type));
+    }
+
+    /**
+     * 逻辑过期数据的查询结果 解码失败按未命中统计
+     */
+    private static CacheMetrics.Outcome outcomeOf(Object value, long expireMillis, long now) {
+        if (value == null) {
+            return CacheMetrics.Outcome.MISS;
+        }
+        return expireMillis > now ? CacheMetrics.Outcome.HIT : CacheMetrics.Outcome.STALE;
+    }
+
+    /**
+     * 判断是否需要提前刷新 XFetch
+     * 重建耗时越长 距离过期越近 触发概率越大
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, int deltaMillis, long expireMillis, long now) {
+        Double beta = earlyRefreshBetas.get(keyPrefix);
+        if (beta == null || deltaMillis <= 0) {
+            return false;
+        }
+        // 1 - nextDouble() 取值 (0, 1] 避免 ln(0)
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        return now - deltaMillis * beta * Math.log(random) >= expireMillis;
+    }
+
+    /**
+     * 有效期加入 [0, CACHE_TTL_JITTER_RATIO) 比例的随机偏移 避免批量写入的数据同时过期
+     *
+     * @return 有效期 毫秒
+     */
+    private static long jitterMillis(Long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        long bound = (long) (millis * RedisConstants.CACHE_TTL_JITTER_RATIO);
+        return bound <= 0 ? millis : millis + ThreadLocalRandom.current().nextLong(bound);
+    }
+
+    private static RedisData toRedisData(Object value, long expireMillis) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+        return redisData;
+    }
+
+    /**
+     * 重建缓存使用的互斥锁 每个缓存key独立
+     */
+    private static String lockKeyOf(String key) {
+        return RedisConstants.CACHE_LOCK_KEY + key;
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 通过pipeline 批量获取互斥锁
+     *
+     * @param keyPrefix
+     * @param ids
+     * @return 获取锁成功的id
+     */
+    private <T> List<T> tryLockBatch(String keyPrefix, List<T> ids) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            Expiration expiration = Expiration.from(RedisConstants.CACHE_LOCK_TTL, TimeUnit.MINUTES);
+            for (T id : ids) {
+                stringConnection.set(lockKeyOf(keyPrefix + id), "1", expiration, RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        List<T> lockedIds = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (BooleanUtil.isTrue((Boolean) results.get(i))) {
+                lockedIds.add(ids.get(i));
+            }
+        }
+        return lockedIds;
     }
 
     private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.MINUTES);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.CACHE_LOCK_TTL, TimeUnit.MINUTES);
         return BooleanUtil.isTrue(flag);
     }
 
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    /**
+     * 热点key的提升时间和副本命中统计
+     */
+    private static class HotKey {
+
+        private final long promotedAt = System.currentTimeMillis();
+
+        private final LongAdder hits = new LongAdder();
+
+        private final LongAdder misses = new LongAdder();
+    }
 }
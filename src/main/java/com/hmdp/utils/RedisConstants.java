@@ -8,15 +8,100 @@ public class RedisConstants {
 
     public static final Long CACHE_NULL_TTL = 2L;
 
-    public static final Long CACHE_SHOP_TTL = 180L;
+    public static final long CACHE_SHOP_TTL = 180L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_LOCAL_SIZE = 1000L;
+    public static final Long CACHE_SHOP_LOCAL_TTL = 30L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final Long CACHE_LOAD_WAIT_MILLIS = 3000L;
+    public static final Long CACHE_STALE_SIZE = 10000L;
+    public static final Long CACHE_STALE_TTL = 60L;
+    public static final Long CACHE_DELAY_DELETE_MILLIS = 500L;
+    public static final String CACHE_INVALIDATE_QUEUE_FILE = "hmdp/cache-invalidate.queue";
+    public static final long CACHE_INVALIDATE_RETRY_MILLIS = 5000L;
+    public static final Double CACHE_TTL_JITTER_RATIO = 0.1;
+    public static final Double CACHE_SHOP_REFRESH_BETA = 1.0;
+
+    public static final Integer CACHE_WARM_BATCH_SIZE = 500;
+    public static final Integer CACHE_WARM_THREADS = 4;
+    public static final Double CACHE_WARM_READY_RATIO = 0.8;
+    public static final Long CACHE_WARM_TIMEOUT = 60L;
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
 
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shopType";
+    public static final long CACHE_SHOP_TYPE_TTL = 60L;
+
+    public static final String CACHE_VOUCHER_SHOP_KEY = "cache:voucher:shop:";
+    public static final long CACHE_VOUCHER_SHOP_TTL = 1L;
+
+    public static final Long CACHE_LOCAL_SIZE = 1000L;
+    public static final Long CACHE_LOCAL_TTL = 30L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String CACHE_LOCK_KEY = "lock:";
+    public static final Long CACHE_LOCK_TTL = 10L;
+
+    public static final Integer CACHE_REBUILD_THREADS = 4;
+    public static final Integer CACHE_REBUILD_QUEUE_SIZE = 100;
+    public static final Long CACHE_REBUILD_SHED_MILLIS = 500L;
+
+    public static final Integer CACHE_DB_THREADS = 16;
+    public static final Integer CACHE_DB_QUEUE_SIZE = 1000;
+
+    public static final String CACHE_HOT_KEY_CHANNEL = "cache:hotkey";
+    public static final Integer CACHE_HOT_KEY_SLOTS = 6;
+    public static final long CACHE_HOT_KEY_SLOT_MILLIS = 10000L;
+    public static final Integer CACHE_HOT_KEY_DEPTH = 4;
+    public static final Integer CACHE_HOT_KEY_WIDTH = 4096;
+    public static final Integer CACHE_HOT_KEY_TOP_K = 100;
+    public static final Long CACHE_HOT_KEY_THRESHOLD = 3000L;
+    public static final Long CACHE_HOT_KEY_REPLICA_SIZE = 10000L;
+    public static final Long CACHE_HOT_KEY_REPLICA_TTL = 5L;
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final Double BLOOM_FILTER_FPP = 0.01;
+    public static final Long BLOOM_MIN_INSERTIONS = 10000L;
+    public static final Integer BLOOM_LOAD_BATCH_SIZE = 5000;
+    public static final Long BLOOM_REBUILD_JITTER_MILLIS = 600000L;
+    public static final String BLOOM_RECENT_KEY = "bloom:recent:";
+    public static final long BLOOM_SYNC_MILLIS = 60000L;
+    public static final Long BLOOM_RECENT_RETAIN_MILLIS = 86400000L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_ID_KEY = "seckill:orderid:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    public static final Integer SECKILL_STOCK_SEGMENTS = 8;
+    public static final Integer SECKILL_SEGMENT_THRESHOLD = 1000;
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher";
+    public static final long SECKILL_REGISTRY_REFRESH_MILLIS = 60000L;
+    public static final String SECKILL_PREHEAT_KEY = "seckill:preheat:";
+    public static final long SECKILL_PREHEAT_POLL_MILLIS = 5000L;
+    public static final Long SECKILL_PREHEAT_LEAD_MILLIS = 300000L;
+    public static final Long SECKILL_TEARDOWN_DELAY_MILLIS = 300000L;
+    public static final Integer SECKILL_PRELOAD_BATCH_SIZE = 1000;
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile:";
+    public static final Integer SECKILL_RECONCILE_BATCH_SIZE = 1000;
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream.orders.dead";
+    public static final String SECKILL_ORDER_GROUP = "order-group";
+    public static final Integer SECKILL_ORDER_BATCH_SIZE = 100;
+    public static final Long SECKILL_ORDER_BLOCK_MILLIS = 2000L;
+    public static final Long SECKILL_ORDER_LINGER_MILLIS = 50L;
+    public static final Long SECKILL_ORDER_CLAIM_IDLE_MILLIS = 60000L;
+    public static final Long SECKILL_ORDER_RECOVER_MILLIS = 30000L;
+    public static final Long SECKILL_ORDER_MAX_DELIVERY = 5L;
+    public static final Long ID_SEGMENT_SIZE = 1000L;
+    public static final Double ID_SEGMENT_PREFETCH_RATIO = 0.8;
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_LEASE_MILLIS = 30000L;
+    public static final Long ID_MAX_BACKWARD_MILLIS = 5L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
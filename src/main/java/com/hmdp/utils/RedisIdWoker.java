@@ -1,19 +1,44 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import com.hmdp.dto.IdInfoDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @className: RedisIdWoker
  * @description: redis 生成id
+ * 号段模式 每个节点通过一次 INCRBY 预留一段序列号 在本地用 AtomicLong 无锁分配
+ * 当前号段用到 ID_SEGMENT_PREFETCH_RATIO 时异步预取下一个号段 用完时直接切换
+ * 雪花模式 毫秒时间戳 41位 + worker id 10位 + 序列号 12位 完全在本地生成
+ * worker id 从redis租用 定时续期 关闭时释放 续期失败或租期已过时重新租用
  * @author: FengL
  * @create: 2024/12/24 22:14
  */
+@Slf4j
 @Component
 public class RedisIdWoker {
 
@@ -28,10 +53,92 @@ public class RedisIdWoker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 与 LocalDateTime.now() 使用相同的时区 避免每次生成id都创建 LocalDateTime
+     */
+    private static final TimeZone ZONE = TimeZone.getDefault();
+
+    /**
+     * 雪花id的起始时间 2025-01-01 0:0:0 UTC
+     */
+    private static final long SNOWFLAKE_EPOCH = 1735689600000L;
+
+    private static final int WORKER_BITS = 10;
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> WORKER_LEASE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        WORKER_LEASE_SCRIPT.setLocation(new ClassPathResource("worker_lease.lua"));
+        WORKER_LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * worker id 持有者标识
+     */
+    private static final String WORKER_OWNER = UUID.randomUUID().toString(true);
+
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * key前缀 -> 当前号段
+     */
+    private final Map<String, IdSegment> segments = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-prefetch-", true));
+
+    private final ScheduledExecutorService heartbeatExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("id-worker-heartbeat-", true));
+
+    /**
+     * 租用的worker id 未租用时为 -1
+     */
+    private volatile int workerId = -1;
+
+    /**
+     * 租期截止时间 超过后不再使用当前worker id
+     */
+    private volatile long leaseDeadline;
+
+    /**
+     * 雪花id的锁 与号段切换互不影响
+     */
+    private final Object snowflakeLock = new Object();
+
+    /**
+     * 租用worker id的锁 租用期间不持有 snowflakeLock
+     */
+    private final Object workerLock = new Object();
+
+    private long lastMillis = -1;
+
+    private long snowflakeSequence;
+
+    private boolean heartbeatStarted;
+
+    @PreDestroy
+    public void destroy() {
+        prefetchExecutor.shutdownNow();
+        heartbeatExecutor.shutdownNow();
+        int current = workerId;
+        if (current >= 0) {
+            stringRedisTemplate.execute(WORKER_LEASE_SCRIPT, Collections.singletonList(RedisConstants.ID_WORKER_KEY + current),
+                    WORKER_OWNER, "0");
+            log.info("释放worker id:{}", current);
+        }
+    }
 
     /**
      * 时间戳 32位 + 序列号 32位
@@ -40,21 +147,291 @@ public class RedisIdWoker {
      * @return
      */
     public long nextId(String keyPrefix) {
-        // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        // 1.生成时间戳 本地时间的秒数 与 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 一致
+        long nowMillis = System.currentTimeMillis();
+        long nowSecond = (nowMillis + ZONE.getOffset(nowMillis)) / 1000;
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
-        // 2.生成序列号
-        // 2.1 获取当前日期 精确到天  防止超过最大增长数值 2^64
-        // yyyy:MM:dd  方便后面统计 年 月 日 生成的订单数
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long increment = stringRedisTemplate.opsForValue().increment("inc:" + keyPrefix + ":" + date);
+        // 2.生成序列号 按天使用不同的key 防止超过最大增长数值 2^32
+        long increment = nextSequence(keyPrefix, nowSecond / SECONDS_PER_DAY);
 
         // 3.拼接连接在一起
         return timestamp << COUNT_BITS | increment;
     }
 
+    /**
+     * 该时间之后(含)生成的id都不小于返回值 用于把时间范围转换为主键范围
+     */
+    public static long minIdOf(LocalDateTime time) {
+        return (time.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP) << COUNT_BITS;
+    }
+
+    /**
+     * 该时间之前(含)生成的id都不大于返回值
+     */
+    public static long maxIdOf(LocalDateTime time) {
+        return minIdOf(time) | 0xFFFFFFFFL;
+    }
+
+    /**
+     * 某一天生成的id数量 号段模式下包含各节点已预留未使用的序列号 只作为近似值
+     */
+    public long countOfDay(String keyPrefix, LocalDate date) {
+        String count = stringRedisTemplate.opsForValue().get("inc:" + keyPrefix + ":" + date.format(DATE_FORMATTER));
+        return count == null ? 0 : Long.parseLong(count);
+    }
+
+    /**
+     * 提前分配当前号段并预取下一个号段 秒杀开始前调用 避免开始时同步访问redis
+     */
+    public void preload(String keyPrefix) {
+        long nowMillis = System.currentTimeMillis();
+        long epochDay = (nowMillis + ZONE.getOffset(nowMillis)) / 1000 / SECONDS_PER_DAY;
+        IdSegment segment = segments.get(keyPrefix);
+        if (segment == null || segment.epochDay < epochDay) {
+            segment = switchDay(keyPrefix, epochDay);
+        }
+        prefetch(keyPrefix, segment);
+    }
+
+    private long nextSequence(String keyPrefix, long epochDay) {
+        while (true) {
+            IdSegment segment = segments.get(keyPrefix);
+            // 跨天后使用新的key 时钟回拨到前一天时继续使用当前号段
+            if (segment == null || segment.epochDay < epochDay) {
+                switchDay(keyPrefix, epochDay);
+                continue;
+            }
+            long sequence = segment.next.getAndIncrement();
+            if (sequence < segment.end) {
+                if (sequence == segment.prefetchAt) {
+                    prefetch(keyPrefix, segment);
+                }
+                return sequence;
+            }
+            // 当前号段用完 切换到下一个号段
+            rollover(keyPrefix, segment);
+        }
+    }
+
+    private synchronized IdSegment switchDay(String keyPrefix, long epochDay) {
+        IdSegment segment = segments.get(keyPrefix);
+        if (segment != null && segment.epochDay >= epochDay) {
+            return segment;
+        }
+        segment = allocate(keyPrefix, epochDay);
+        segments.put(keyPrefix, segment);
+        return segment;
+    }
+
+    /**
+     * 只有号段用完时才会加锁 正常情况下预取的号段已经就绪
+     */
+    private synchronized void rollover(String keyPrefix, IdSegment segment) {
+        if (segments.get(keyPrefix) != segment) {
+            // 其他线程已经切换
+            return;
+        }
+        IdSegment next = null;
+        CompletableFuture<IdSegment> future = segment.nextSegment;
+        if (future != null) {
+            try {
+                next = future.join();
+            } catch (Exception e) {
+                log.warn("预取号段失败 同步分配 keyPrefix:{}", keyPrefix, e);
+            }
+        }
+        if (next == null) {
+            next = allocate(keyPrefix, segment.epochDay);
+        }
+        segments.put(keyPrefix, next);
+    }
+
+    private void prefetch(String keyPrefix, IdSegment segment) {
+        if (segment.nextSegment == null) {
+            synchronized (segment) {
+                if (segment.nextSegment == null) {
+                    segment.nextSegment = CompletableFuture.supplyAsync(
+                            () -> allocate(keyPrefix, segment.epochDay), prefetchExecutor);
+                }
+            }
+        }
+    }
+
+    /**
+     * INCRBY inc:order:yyyy:MM:dd 1000 预留 (max - size, max] 的序列号
+     */
+    private IdSegment allocate(String keyPrefix, long epochDay) {
+        String date = LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER);
+        Long max = stringRedisTemplate.opsForValue().increment("inc:" + keyPrefix + ":" + date, RedisConstants.ID_SEGMENT_SIZE);
+        if (max == null) {
+            throw new IllegalStateException("分配id号段失败 keyPrefix:" + keyPrefix);
+        }
+        return new IdSegment(epochDay, max - RedisConstants.ID_SEGMENT_SIZE + 1, max + 1);
+    }
+
+    /**
+     * 一个号段 [start, end)
+     */
+    private static class IdSegment {
+
+        private final long epochDay;
+
+        private final long end;
+
+        /**
+         * 分配到这个序列号时预取下一个号段
+         */
+        private final long prefetchAt;
+
+        private final AtomicLong next;
+
+        private volatile CompletableFuture<IdSegment> nextSegment;
+
+        private IdSegment(long epochDay, long start, long end) {
+            this.epochDay = epochDay;
+            this.end = end;
+            this.prefetchAt = start + (long) ((end - start) * RedisConstants.ID_SEGMENT_PREFETCH_RATIO);
+            this.next = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 雪花id 毫秒时间戳 41位 + worker id 10位 + 序列号 12位 不访问redis
+     * 与 nextId 的位布局不同 不能混用在同一张表的主键上
+     */
+    public long nextSnowflakeId() {
+        while (true) {
+            if (System.currentTimeMillis() >= leaseDeadline) {
+                acquireWorker();
+            }
+            synchronized (snowflakeLock) {
+                long now = System.currentTimeMillis();
+                if (now >= leaseDeadline) {
+                    // 租期在加锁前到期 释放锁后重新租用
+                    continue;
+                }
+                // 1.时钟回拨 小幅回拨等待追上 超过阈值拒绝生成
+                if (now < lastMillis) {
+                    long backward = lastMillis - now;
+                    if (backward > RedisConstants.ID_MAX_BACKWARD_MILLIS) {
+                        throw new IllegalStateException("时钟回拨" + backward + "ms 拒绝生成id");
+                    }
+                    now = waitUntil(lastMillis);
+                }
+                // 2.同一毫秒内递增序列号 用完时等待下一毫秒
+                if (now == lastMillis) {
+                    snowflakeSequence = (snowflakeSequence + 1) & SEQUENCE_MASK;
+                    if (snowflakeSequence == 0) {
+                        now = waitUntil(lastMillis + 1);
+                    }
+                } else {
+                    snowflakeSequence = 0;
+                }
+                lastMillis = now;
+                return (now - SNOWFLAKE_EPOCH) << (WORKER_BITS + SEQUENCE_BITS)
+                        | (long) workerId << SEQUENCE_BITS
+                        | snowflakeSequence;
+            }
+        }
+    }
+
+    /**
+     * 解析 nextId 生成的id
+     */
+    public static IdInfoDTO decode(long id) {
+        IdInfoDTO info = new IdInfoDTO();
+        info.setId(id);
+        info.setCreateTime(LocalDateTime.ofEpochSecond((id >>> COUNT_BITS) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC));
+        info.setSequence(id & 0xFFFFFFFFL);
+        return info;
+    }
+
+    /**
+     * 解析 nextSnowflakeId 生成的id 用于排查订单由哪个节点在什么时间创建
+     */
+    public static IdInfoDTO decodeSnowflake(long id) {
+        IdInfoDTO info = new IdInfoDTO();
+        info.setId(id);
+        long millis = (id >>> (WORKER_BITS + SEQUENCE_BITS)) + SNOWFLAKE_EPOCH;
+        info.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZONE.toZoneId()));
+        info.setWorkerId((int) ((id >>> SEQUENCE_BITS) & MAX_WORKER_ID));
+        info.setSequence(id & SEQUENCE_MASK);
+        return info;
+    }
+
+    private static long waitUntil(long millis) {
+        long now = System.currentTimeMillis();
+        while (now < millis) {
+            Thread.yield();
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+
+    /**
+     * 从随机位置开始依次尝试 SET id:worker:n owner NX PX lease
+     * 查找期间只持有 workerLock 多个线程同时到期时只有一个线程租用 租用成功后在 snowflakeLock 中切换
+     */
+    private void acquireWorker() {
+        synchronized (workerLock) {
+            if (System.currentTimeMillis() < leaseDeadline) {
+                // 其他线程已经租用
+                return;
+            }
+            int previous = workerId;
+            int start = RandomUtil.randomInt(MAX_WORKER_ID + 1);
+            for (int i = 0; i <= MAX_WORKER_ID; i++) {
+                int id = (start + i) & MAX_WORKER_ID;
+                long begin = System.currentTimeMillis();
+                Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.ID_WORKER_KEY + id, WORKER_OWNER,
+                        RedisConstants.ID_WORKER_LEASE_MILLIS, TimeUnit.MILLISECONDS);
+                if (Boolean.TRUE.equals(success)) {
+                    synchronized (snowflakeLock) {
+                        workerId = id;
+                        leaseDeadline = begin + RedisConstants.ID_WORKER_LEASE_MILLIS;
+                    }
+                    startHeartbeat();
+                    log.info("租用worker id:{} 之前的worker id:{}", id, previous);
+                    return;
+                }
+            }
+            throw new IllegalStateException("没有可用的worker id");
+        }
+    }
+
+    /**
+     * 每 1/3 租期续期一次 续期失败时租期截止时间置0 下次生成id时重新租用
+     */
+    private void startHeartbeat() {
+        if (heartbeatStarted) {
+            return;
+        }
+        heartbeatStarted = true;
+        long period = RedisConstants.ID_WORKER_LEASE_MILLIS / 3;
+        heartbeatExecutor.scheduleAtFixedRate(() -> {
+            int current = workerId;
+            if (current < 0) {
+                return;
+            }
+            try {
+                long begin = System.currentTimeMillis();
+                Long renewed = stringRedisTemplate.execute(WORKER_LEASE_SCRIPT,
+                        Collections.singletonList(RedisConstants.ID_WORKER_KEY + current),
+                        WORKER_OWNER, String.valueOf(RedisConstants.ID_WORKER_LEASE_MILLIS));
+                if (renewed != null && renewed == 1 && workerId == current) {
+                    leaseDeadline = begin + RedisConstants.ID_WORKER_LEASE_MILLIS;
+                } else if (workerId == current) {
+                    leaseDeadline = 0;
+                    log.warn("worker id:{} 续期失败 重新租用", current);
+                }
+            } catch (Exception e) {
+                // 续期异常时不修改截止时间 租期过后自动停止使用
+                log.warn("worker id:{} 续期异常", current, e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
     public static void main(String[] args) {
         LocalDateTime localDateTime = LocalDateTime.of(1992, 4, 7, 0, 0, 0);
         long second = localDateTime.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,18 @@
+-- 获取可重入锁 hash中记录 持有者标识 -> 重入次数
+-- KEYS[1] 锁key  ARGV[1] 持有者标识  ARGV[2] 租期毫秒
+-- 返回值 nil:首次获取成功 -1:重入成功 其他:锁的剩余毫秒数 锁没有过期时间时为0
+if redis.call('exists', KEYS[1]) == 0 then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return nil
+end
+if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return -1
+end
+local ttl = redis.call('pttl', KEYS[1])
+if ttl < 0 then
+    return 0
+end
+return ttl
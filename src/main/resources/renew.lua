@@ -0,0 +1,6 @@
+-- 看门狗续期 只有持有者可以续期
+-- KEYS[1] 锁key  ARGV[1] 持有者标识  ARGV[2] 租期毫秒
+if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
@@ -0,0 +1,29 @@
+-- 秒杀资格判断 时间窗口 库存 一人一单 在redis中原子执行
+-- KEYS[1] 库存key  KEYS[2] 已下单用户集合key  KEYS[3] 秒杀时间hash key  KEYS[4] 订单消息队列stream
+-- KEYS[5] 用户id -> 订单id hash 对账补单时使用同一个订单id
+-- ARGV[1] 用户id  ARGV[2] 当前时间毫秒 由调用方传入 不依赖redis服务器时间  ARGV[3] 订单id  ARGV[4] 优惠券id
+-- 返回值 0:成功 1:库存不足 2:重复下单 3:尚未开始 4:已经结束 5:优惠券不存在
+local stock = redis.call('get', KEYS[1])
+if not stock then
+    return 5
+end
+local now = tonumber(ARGV[2])
+local times = redis.call('hmget', KEYS[3], 'begin', 'end')
+if times[1] and now < tonumber(times[1]) then
+    return 3
+end
+if times[2] and now > tonumber(times[2]) then
+    return 4
+end
+if tonumber(stock) <= 0 then
+    return 1
+end
+if redis.call('sismember', KEYS[2], ARGV[1]) == 1 then
+    return 2
+end
+-- 扣减库存 记录下单用户和订单id 发送订单消息 XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('incrby', KEYS[1], -1)
+redis.call('sadd', KEYS[2], ARGV[1])
+redis.call('hset', KEYS[5], ARGV[1], ARGV[3])
+redis.call('xadd', KEYS[4], '*', 'userId', ARGV[1], 'voucherId', ARGV[4], 'id', ARGV[3])
+return 0
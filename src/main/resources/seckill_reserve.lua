@@ -0,0 +1,21 @@
+-- 库存分段模式的第一步 判断时间窗口和一人一单 并记录下单用户和订单id
+-- 分段库存分布在不同的slot 不能与下单用户集合在同一个脚本中修改 扣减失败时由调用方 srem hdel 回滚
+-- KEYS[1] 已下单用户集合key  KEYS[2] 秒杀时间hash key  KEYS[3] 用户id -> 订单id hash
+-- ARGV[1] 用户id  ARGV[2] 当前时间毫秒  ARGV[3] 订单id
+-- 返回值 0:成功 2:重复下单 3:尚未开始 4:已经结束 5:优惠券不存在
+local times = redis.call('hmget', KEYS[2], 'begin', 'end')
+if not times[1] then
+    return 5
+end
+local now = tonumber(ARGV[2])
+if now < tonumber(times[1]) then
+    return 3
+end
+if times[2] and now > tonumber(times[2]) then
+    return 4
+end
+if redis.call('sadd', KEYS[1], ARGV[1]) == 0 then
+    return 2
+end
+redis.call('hset', KEYS[3], ARGV[1], ARGV[3])
+return 0
@@ -0,0 +1,8 @@
+-- 扣减一个库存分段 分段库存为0时不扣减 所有分段之和不会超卖
+-- KEYS[1] 分段库存key
+-- 返回值 扣减后的剩余库存 -1:该分段已售罄
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if stock <= 0 then
+    return -1
+end
+return redis.call('incrby', KEYS[1], -1)
@@ -1,6 +1,12 @@
--- 比较线程标识与锁中标识是否一致
-if (redis.call('get', KEYS[1]) == ARGV[1]) then
-    -- 一致 则释放锁
-    return redis.call('del', KEYS[1])
+-- 释放可重入锁 只有持有者可以释放 重入次数减到0时删除锁 并通知等待者
+-- KEYS[1] 锁key  KEYS[2] 锁释放频道  ARGV[1] 持有者标识
+-- 返回值 nil:不是持有者 0:仍被持有(重入) 1:已释放
+if redis.call('hexists', KEYS[1], ARGV[1]) == 0 then
+    return nil
 end
-return 0
\ No newline at end of file
+if redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0 then
+    return 0
+end
+redis.call('del', KEYS[1])
+redis.call('publish', KEYS[2], ARGV[1])
+return 1
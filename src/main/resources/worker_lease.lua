@@ -0,0 +1,9 @@
+-- 续期或释放worker id 只有持有者可以操作
+-- KEYS[1] worker id key  ARGV[1] 持有者标识  ARGV[2] 续期毫秒数 0表示释放
+if redis.call('get', KEYS[1]) ~= ARGV[1] then
+    return 0
+end
+if tonumber(ARGV[2]) == 0 then
+    return redis.call('del', KEYS[1])
+end
+return redis.call('pexpire', KEYS[1], ARGV[2])
@@ -1,15 +1,27 @@
 package com.hmdp;
 
+import com.hmdp.lock.ILock;
+import com.hmdp.lock.LockPubSub;
+import com.hmdp.lock.SimpleRedisLock;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.RedisIdWoker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -20,6 +32,15 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWoker redisIdWoker;
 
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LockPubSub lockPubSub;
+
     private ExecutorService executorService = Executors.newFixedThreadPool(500);
 
     @Test
@@ -48,4 +69,132 @@ class HmDianPingApplicationTests {
         long end = System.currentTimeMillis();
         System.out.println("耗时:" + (end - begin));
     }
+
+    /**
+     * 号段模式 跨越多个号段时id不重复 同一线程内递增
+     */
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        int threads = 50;
+        int count = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicBoolean ordered = new AtomicBoolean(true);
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            executorService.submit(() -> {
+                long last = 0;
+                for (int j = 0; j < count; j++) {
+                    long id = redisIdWoker.nextId("test");
+                    ids.add(id);
+                    if (id <= last) {
+                        ordered.set(false);
+                    }
+                    last = id;
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        Assertions.assertEquals(threads * count, ids.size());
+        Assertions.assertTrue(ordered.get());
+    }
+
+    /**
+     * 可重入 重入后需要释放同样次数 指定租期时到期自动释放
+     */
+    @Test
+    void testSimpleRedisLock() throws InterruptedException {
+        ILock lock = new SimpleRedisLock("test", stringRedisTemplate);
+        Assertions.assertTrue(lock.tryLock(10));
+        Assertions.assertTrue(lock.tryLock(10));
+        lock.unlock();
+        Assertions.assertEquals(Boolean.TRUE, stringRedisTemplate.hasKey("lock:test"));
+        lock.unlock();
+        Assertions.assertEquals(Boolean.FALSE, stringRedisTemplate.hasKey("lock:test"));
+
+        Assertions.assertTrue(lock.tryLock(1));
+        Thread.sleep(1500);
+        Assertions.assertEquals(Boolean.FALSE, stringRedisTemplate.hasKey("lock:test"));
+    }
+
+    /**
+     * 没有指定租期时 看门狗在持有期间续期
+     */
+    @Test
+    void testSimpleRedisLockWatchdog() throws InterruptedException {
+        ILock lock = new SimpleRedisLock("test:watchdog", stringRedisTemplate);
+        Assertions.assertTrue(lock.tryLock(0, -1, TimeUnit.SECONDS));
+        Thread.sleep(12000);
+        Long ttl = stringRedisTemplate.getExpire("lock:test:watchdog", TimeUnit.SECONDS);
+        Assertions.assertTrue(ttl != null && ttl > 20);
+        lock.unlock();
+        Assertions.assertEquals(Boolean.FALSE, stringRedisTemplate.hasKey("lock:test:watchdog"));
+    }
+
+    /**
+     * 对比 SimpleRedisLock 与 Redisson RLock 获取和释放的耗时 每个线程使用不同的锁
+     */
+    @Test
+    void testLockBenchmark() throws InterruptedException {
+        int threads = 50;
+        int count = 200;
+        CountDownLatch simpleLatch = new CountDownLatch(threads);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            ILock lock = new SimpleRedisLock("bench:simple:" + i, stringRedisTemplate);
+            executorService.submit(() -> {
+                for (int j = 0; j < count; j++) {
+                    if (lock.tryLock(30)) {
+                        lock.unlock();
+                    }
+                }
+                simpleLatch.countDown();
+            });
+        }
+        simpleLatch.await();
+        System.out.println("SimpleRedisLock 耗时:" + (System.currentTimeMillis() - begin));
+
+        CountDownLatch redissonLatch = new CountDownLatch(threads);
+        begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            RLock lock = redissonClient.getLock("lock:bench:redisson:" + i);
+            executorService.submit(() -> {
+                for (int j = 0; j < count; j++) {
+                    if (lock.tryLock()) {
+                        lock.unlock();
+                    }
+                }
+                redissonLatch.countDown();
+            });
+        }
+        redissonLatch.await();
+        System.out.println("RLock 耗时:" + (System.currentTimeMillis() - begin));
+    }
+
+    /**
+     * 阻塞获取 持有者释放后等待线程通过释放通知立即获取锁
+     */
+    @Test
+    void testSimpleRedisLockWait() throws Exception {
+        ILock lock = new SimpleRedisLock("test:wait", stringRedisTemplate, lockPubSub);
+        Assertions.assertTrue(lock.tryLock(30));
+        CountDownLatch waiting = new CountDownLatch(1);
+        Future<Long> waiter = executorService.submit(() -> {
+            ILock other = new SimpleRedisLock("test:wait", stringRedisTemplate, lockPubSub);
+            waiting.countDown();
+            boolean locked = other.tryLock(5, 30, TimeUnit.SECONDS);
+            long acquiredAt = System.currentTimeMillis();
+            if (locked) {
+                other.unlock();
+            }
+            return locked ? acquiredAt : -1L;
+        });
+        waiting.await();
+        Thread.sleep(500);
+        long releasedAt = System.currentTimeMillis();
+        lock.unlock();
+        long acquiredAt = waiter.get();
+        Assertions.assertTrue(acquiredAt >= releasedAt);
+        System.out.println("锁交接耗时:" + (acquiredAt - releasedAt));
+    }
 }